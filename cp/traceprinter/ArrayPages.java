@@ -0,0 +1,136 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import com.sun.jdi.*;
+import java.io.*;
+import java.util.*;
+import javax.json.*;
+
+/***
+ The full contents of windowed arrays (visualizer_args ARRAY_WINDOW)
+ at each execution point of one trace, so that a daemon client can
+ fetch the elements the trace left out. Each array is kept as the
+ JSON text of its elements, made when it is first saved; an array
+ that didn't change between steps shares the same text.
+
+ Elements are converted while the debuggee runs, but only primitives
+ and null are shown as values; objects, strings included, are given
+ as ["REF", id] and may not be in the heap of that step.
+
+ The pages of all traces together are kept under maxBytes, the way
+ TraceCache bounds its memory: older traces are forgotten first, and
+ a trace that is over the bound on its own stops saving steps.
+***/
+
+public class ArrayPages {
+
+    // --array-pages=MB; 0 turns pages off
+    static long maxBytes = 32L * 1024 * 1024;
+    private static long totalBytes = 0;
+
+    // the traces with pages, eldest first
+    private static final LinkedHashMap<String, ArrayPages> byId = new LinkedHashMap<>();
+
+    final String id = UUID.randomUUID().toString();
+    private long bytes = 0;
+    private boolean full = false;
+
+    // for each execution point, array id -> its elements as JSON
+    private final Map<Integer, Map<Long, String>> steps = new HashMap<>();
+    private Map<Long, String> last = new HashMap<>(); // of the last step saved
+
+    // a new trace's pages, or null if they are turned off
+    static ArrayPages create() {
+        if (maxBytes <= 0)
+            return null;
+        ArrayPages result = new ArrayPages();
+        synchronized (byId) {
+            byId.put(result.id, result);
+        }
+        return result;
+    }
+
+    static ArrayPages get(String id) {
+        synchronized (byId) {
+            return byId.get(id);
+        }
+    }
+
+    // the JSON text ArrayPages keeps of these elements
+    static String elements(List<Value> values) {
+        JsonArrayBuilder result = Json.createArrayBuilder();
+        for (Value v : values) {
+            if (v instanceof ObjectReference)
+                result.add(Json.createArrayBuilder().add("REF").add(((ObjectReference)v).uniqueID()));
+            else
+                result.add(JDI2JSON.convertPrimitive(v));
+        }
+        return result.build().toString();
+    }
+
+    void add(int step, Map<Long, String> arrays) {
+        synchronized (byId) {
+            if (full)
+                return;
+            long added = 0;
+            for (Map.Entry<Long, String> me : arrays.entrySet())
+                if (last.get(me.getKey()) != me.getValue()) // shared text is counted once
+                    added += 2 * me.getValue().length();
+            Iterator<ArrayPages> it = byId.values().iterator();
+            while (totalBytes + added > maxBytes && it.hasNext()) {
+                ArrayPages eldest = it.next();
+                if (eldest != this) {
+                    totalBytes -= eldest.bytes;
+                    it.remove();
+                }
+            }
+            if (totalBytes + added > maxBytes) {
+                full = true;
+                return;
+            }
+            totalBytes += added;
+            bytes += added;
+            steps.put(step, arrays);
+            last = arrays;
+        }
+    }
+
+    // elements from (inclusive) to (exclusive) of an array at a step
+    JsonObject page(int step, long array, int from, int to) {
+        String elements;
+        synchronized (byId) {
+            Map<Long, String> arrays = steps.get(step);
+            elements = arrays == null ? null : arrays.get(array);
+            if (elements == null)
+                return Json.createObjectBuilder()
+                    .add("error", "no windowed array " + array + " at step " + step
+                         + (full ? ", or it wasn't kept" : ""))
+                    .build();
+        }
+
+        JsonArray values = Json.createReader(new StringReader(elements)).readArray();
+        from = Math.max(0, from);
+        to = Math.min(values.size(), to);
+        JsonArrayBuilder result = Json.createArrayBuilder();
+        for (int i=from; i<to; i++)
+            result.add(values.get(i));
+        return Json.createObjectBuilder()
+            .add("step", step)
+            .add("array", array)
+            .add("from", from)
+            .add("values", result)
+            .build();
+    }
+}
@@ -0,0 +1,123 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import java.util.*;
+
+/***
+ Just enough of the JVM instruction set to walk through the code of a
+ method (Method.bytecodes()) and find where, in the middle of a line,
+ the trace may show something new without an event of its own: just
+ after a store to a local variable, a field or an array element, and
+ where a jump lands, which can take variables out of scope.
+***/
+
+public class Bytecodes {
+
+    private static final int SALOAD = 53, ISTORE = 54, SASTORE = 86, POP = 87,
+        LXOR = 131, IINC = 132, I2L = 133, DCMPG = 152, IFEQ = 153, JSR = 168,
+        TABLESWITCH = 170, LOOKUPSWITCH = 171, GETSTATIC = 178, PUTSTATIC = 179,
+        GETFIELD = 180, PUTFIELD = 181, NEW = 187, ARRAYLENGTH = 190, CHECKCAST = 192,
+        INSTANCEOF = 193, WIDE = 196, IFNULL = 198, IFNONNULL = 199, GOTO_W = 200,
+        JSR_W = 201;
+
+    // length of each instruction, 0 if it depends on where it is
+    private static final byte[] LENGTH = new byte[256];
+    static {
+        Arrays.fill(LENGTH, (byte)1);
+        for (int op : new int[] {16, 18, 21, 22, 23, 24, 25, 54, 55, 56, 57, 58, 169, 188})
+            LENGTH[op] = 2; // bipush, ldc, loads, stores, ret, newarray
+        for (int op : new int[] {17, 19, 20, 132, 187, 189, 192, 193, 198, 199})
+            LENGTH[op] = 3; // sipush, ldc_w, ldc2_w, iinc, new, anewarray, checkcast, ...
+        for (int op=153; op<=168; op++)
+            LENGTH[op] = 3; // ifs, goto, jsr
+        for (int op=178; op<=184; op++)
+            LENGTH[op] = 3; // fields, invokes but interface and dynamic
+        LENGTH[185] = LENGTH[186] = 5; // invokeinterface, invokedynamic
+        LENGTH[197] = 4; // multianewarray
+        LENGTH[200] = LENGTH[201] = 5; // goto_w, jsr_w
+        LENGTH[TABLESWITCH] = LENGTH[LOOKUPSWITCH] = LENGTH[WIDE] = 0;
+    }
+
+    // the length of the instruction at code[bci]
+    static int length(byte[] code, int bci) {
+        int op = code[bci] & 0xff;
+        if (LENGTH[op] != 0)
+            return LENGTH[op];
+        if (op == WIDE)
+            return (code[bci+1] & 0xff) == IINC ? 6 : 4;
+        int pad = 3 - bci % 4; // operands are 4-byte aligned
+        int at = bci + 1 + pad;
+        if (op == TABLESWITCH)
+            return 1 + pad + 12 + 4 * (s4(code, at+8) - s4(code, at+4) + 1);
+        return 1 + pad + 8 + 8 * s4(code, at+4);
+    }
+
+    // xstore, xastore, iinc, putfield or putstatic, maybe after wide
+    static boolean isStore(byte[] code, int bci) {
+        int op = code[bci] & 0xff;
+        if (op == WIDE)
+            op = code[bci+1] & 0xff;
+        return op >= ISTORE && op <= SASTORE || op == IINC
+            || op == PUTSTATIC || op == PUTFIELD;
+    }
+
+    /* nop, constants, loads, stack and arithmetic instructions,
+       compares, getfield, getstatic, new, arraylength, checkcast and
+       instanceof: they change nothing a trace shows, and (unless they
+       throw) go on to the next instruction */
+    static boolean isPure(byte[] code, int bci) {
+        int op = code[bci] & 0xff;
+        return op <= SALOAD || op >= POP && op <= LXOR || op >= I2L && op <= DCMPG
+            || op == GETSTATIC || op == GETFIELD || op == NEW || op == ARRAYLENGTH
+            || op == CHECKCAST || op == INSTANCEOF;
+    }
+
+    // where the instruction at code[bci] may jump to
+    static List<Integer> targets(byte[] code, int bci) {
+        int op = code[bci] & 0xff;
+        List<Integer> result = new ArrayList<>();
+        if (op >= IFEQ && op <= JSR || op == IFNULL || op == IFNONNULL)
+            result.add(bci + (short)((code[bci+1] & 0xff) << 8 | (code[bci+2] & 0xff)));
+        else if (op == GOTO_W || op == JSR_W)
+            result.add(bci + s4(code, bci+1));
+        else if (op == TABLESWITCH || op == LOOKUPSWITCH) {
+            int at = bci + 1 + 3 - bci % 4;
+            result.add(bci + s4(code, at));
+            if (op == TABLESWITCH)
+                for (int i=s4(code, at+4); i<=s4(code, at+8); i++)
+                    result.add(bci + s4(code, at + 12 + 4 * (i - s4(code, at+4))));
+            else
+                for (int i=0; i<s4(code, at+4); i++)
+                    result.add(bci + s4(code, at + 12 + 8 * i));
+        }
+        return result;
+    }
+
+    // just after the stores, and the jump targets, in order
+    static SortedSet<Integer> stops(byte[] code) {
+        SortedSet<Integer> result = new TreeSet<>();
+        for (int bci=0; bci<code.length; bci+=length(code, bci)) {
+            if (isStore(code, bci))
+                result.add(bci + length(code, bci));
+            result.addAll(targets(code, bci));
+        }
+        return result;
+    }
+
+    private static int s4(byte[] code, int at) {
+        return (code[at] & 0xff) << 24 | (code[at+1] & 0xff) << 16
+            | (code[at+2] & 0xff) << 8 | (code[at+3] & 0xff);
+    }
+}
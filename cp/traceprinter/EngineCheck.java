@@ -0,0 +1,188 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import javax.json.*;
+
+/***
+ Checks that the two engines (options.engine, see README) agree:
+   java traceprinter.EngineCheck engine-corpus/*.json
+ traces each request with "jdi" and with "instrument", the way the
+ daemon would, and prints OK or DIFF for each, with the first
+ execution point that differs. The exit status is the number of
+ DIFFs.
+
+ The engines may number heap objects differently, so ids are renamed
+ in the order a reader meets them: locals frame by frame, globals,
+ then the heap by following references. Heap entries nothing refers
+ to (boxes shown as values) are compared as a sorted list. Both
+ traces end where main returns, since jdi goes on into JDK classes
+ after that. Needs "make instrument", or every request falls back to
+ jdi and trivially agrees (the userlog says so).
+***/
+
+public class EngineCheck {
+
+    public static void main(String[] args) throws IOException {
+        int diffs = 0;
+        for (String file : args) {
+            JsonObject request = Json.createReader
+                (new StringReader(new String(Files.readAllBytes(Paths.get(file)), "UTF-8")))
+                .readObject();
+            JsonObject jdi = trace(request, "jdi");
+            JsonObject instrument = trace(request, "instrument");
+            List<JsonValue> a = canonical(jdi.getJsonArray("trace"));
+            List<JsonValue> b = canonical(instrument.getJsonArray("trace"));
+            String name = new File(file).getName();
+            String userlog = instrument.getString("userlog", "").trim().replace('\n', ' ');
+            if (a.equals(b)) {
+                System.out.println(name + " OK " + a.size() + " " + userlog);
+                continue;
+            }
+            diffs++;
+            System.out.println(name + " DIFF " + a.size() + " " + b.size() + " " + userlog);
+            for (int i=0; i<Math.max(a.size(), b.size()); i++) {
+                JsonValue x = i < a.size() ? a.get(i) : null;
+                JsonValue y = i < b.size() ? b.get(i) : null;
+                if (!Objects.equals(x, y)) {
+                    System.out.println("  first difference at " + i);
+                    System.out.println("  jdi        " + x);
+                    System.out.println("  instrument " + y);
+                    break;
+                }
+            }
+        }
+        System.exit(diffs); // the debuggees' threads would keep us alive
+    }
+
+    private static JsonObject trace(JsonObject request, String engine) throws IOException {
+        JsonObjectBuilder options = Json.createObjectBuilder();
+        JsonObject given = request.getJsonObject("options");
+        if (given != null)
+            for (Map.Entry<String, JsonValue> me : given.entrySet())
+                options.add(me.getKey(), me.getValue());
+        options.add("engine", engine);
+        JsonObjectBuilder withEngine = Json.createObjectBuilder();
+        for (Map.Entry<String, JsonValue> me : request.entrySet())
+            if (!me.getKey().equals("options"))
+                withEngine.add(me.getKey(), me.getValue());
+        withEngine.add("options", options);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true, "UTF-8");
+        InMemory.handleRequest(withEngine.build().toString(), out);
+        return Json.createReader(new StringReader(bytes.toString("UTF-8"))).readObject();
+    }
+
+    // the trace up to main's return, with ids renamed (see above)
+    private static List<JsonValue> canonical(JsonArray trace) {
+        Map<String, Integer> ids = new HashMap<>();
+        List<JsonValue> result = new ArrayList<>();
+        if (trace == null)
+            return result;
+        for (JsonValue v : trace) {
+            JsonObject ep = (JsonObject)v;
+            if (!ep.containsKey("heap")) {
+                result.add(rename(ep, ids));
+                continue;
+            }
+            JsonObject heap = ep.getJsonObject("heap");
+            List<String> order = new ArrayList<>();
+            refs(ep.get("stack_to_render"), order);
+            refs(ep.get("globals"), order);
+            Set<String> seen = new HashSet<>();
+            for (int i=0; i<order.size(); i++) // grows as we go
+                if (seen.add(order.get(i))) {
+                    id(order.get(i), ids);
+                    refs(heap.get(order.get(i)), order);
+                }
+
+            JsonObjectBuilder b = Json.createObjectBuilder();
+            for (Map.Entry<String, JsonValue> me : ep.entrySet())
+                if (!me.getKey().equals("heap"))
+                    b.add(me.getKey(), rename(me.getValue(), ids));
+            TreeMap<String, JsonValue> renamed = new TreeMap<>();
+            List<String> loose = new ArrayList<>();
+            for (Map.Entry<String, JsonValue> me : heap.entrySet()) {
+                if (seen.contains(me.getKey()))
+                    renamed.put(id(me.getKey(), ids), rename(me.getValue(), ids));
+                else
+                    loose.add(rename(me.getValue(), ids).toString());
+            }
+            Collections.sort(loose);
+            JsonObjectBuilder h = Json.createObjectBuilder();
+            for (Map.Entry<String, JsonValue> me : renamed.entrySet())
+                h.add(me.getKey(), me.getValue());
+            JsonArrayBuilder l = Json.createArrayBuilder();
+            for (String s : loose)
+                l.add(s);
+            result.add(b.add("heap", h).add("loose", l).build());
+
+            if (ep.getString("event", "").equals("return")
+                && ep.getString("func_name", "").equals("main")
+                && ep.getJsonArray("stack_to_render").size() == 1)
+                break;
+        }
+        return result;
+    }
+
+    private static String id(String original, Map<String, Integer> ids) {
+        if (!ids.containsKey(original))
+            ids.put(original, ids.size() + 1);
+        return "" + ids.get(original);
+    }
+
+    private static boolean isRef(JsonValue v) {
+        if (!(v instanceof JsonArray)) return false;
+        JsonArray a = (JsonArray)v;
+        return a.size() == 2 && a.get(0) instanceof JsonString
+            && ((JsonString)a.get(0)).getString().equals("REF");
+    }
+
+    // the ids v refers to, in order
+    private static void refs(JsonValue v, List<String> result) {
+        if (isRef(v))
+            result.add(((JsonArray)v).get(1).toString());
+        else if (v instanceof JsonArray)
+            for (JsonValue w : (JsonArray)v)
+                refs(w, result);
+        else if (v instanceof JsonObject)
+            for (JsonValue w : ((JsonObject)v).values())
+                refs(w, result);
+    }
+
+    // v with its REFs renamed, and without what always differs
+    private static JsonValue rename(JsonValue v, Map<String, Integer> ids) {
+        if (isRef(v))
+            return Json.createArrayBuilder().add("REF")
+                .add(Integer.parseInt(id(((JsonArray)v).get(1).toString(), ids))).build();
+        if (v instanceof JsonArray) {
+            JsonArrayBuilder b = Json.createArrayBuilder();
+            for (JsonValue w : (JsonArray)v)
+                b.add(rename(w, ids));
+            return b.build();
+        }
+        if (v instanceof JsonObject) {
+            JsonObjectBuilder b = Json.createObjectBuilder();
+            for (Map.Entry<String, JsonValue> me : ((JsonObject)v).entrySet())
+                if (!me.getKey().equals("frame_id") && !me.getKey().equals("unique_hash"))
+                    b.add(me.getKey(), rename(me.getValue(), ids));
+            return b.build();
+        }
+        return v;
+    }
+}
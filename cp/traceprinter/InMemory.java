@@ -39,8 +39,51 @@ public class InMemory {
     VirtualMachine vm;
     static String stdin;
     Map<String, byte[]> bytecode;
+    JSONTracingThread tt;
 
-    public final static long startTime = System.currentTimeMillis();
+    // where the trace (or compile error) is printed
+    PrintStream out;
+
+    // in daemon mode we must never System.exit, since the debugger VM is shared
+    boolean daemon;
+
+    final long startTime = System.currentTimeMillis();
+
+    // pre-launched debuggees, only used in daemon mode
+    static VMPool pool = null;
+
+    // daemon mode: run several requests in the same debuggee?
+    static boolean recycleVMs = false;
+
+    // compile results by hash of the source, null to always run javac
+    static BytecodeCache compileCache = null;
+
+    // finished traces by hash of the request, null to never cache
+    static TraceCache traceCache = null;
+
+    // where to save this trace when it's done, null if not cacheable
+    String traceKey = null;
+
+    // visualizer_args ARRAY_WINDOW, see JDI2JSON.arrayWindow
+    int arrayWindow = 0;
+
+    // visualizer_args OUTPUT_FORMAT "ndjson": stream the trace line by line
+    boolean ndjson = false;
+
+    // visualizer_args DELTA_KEYFRAME, see TraceDelta; 0 for full steps only
+    int deltaKeyframe = 0;
+
+    // visualizer_args JDWP_PROFILE, see JDWPProfile
+    boolean jdwpProfile = false;
+
+    // options.engine "instrument": the debuggee traces itself, see shoelace.instrument.Tracer
+    boolean instrument = false;
+
+    // leave the debuggee parked after main so it can be recycled
+    boolean reuseVM;
+
+    // non-null if vm was recycled: the thread parked in NoopMain.main
+    ThreadReference parkedThread = null;
 
     public static String getFileContents(String filename) {
         StringBuilder result = new StringBuilder();
@@ -57,9 +100,13 @@ public class InMemory {
     }
 
 
+    // main's line of the userlog, which each daemon request logs again
+    static String startupLog;
+
     public static void main(String[] args) {
 
-        JDI2JSON.userlog("Debugger VM maxMemory: " + Runtime.getRuntime().maxMemory() / 1024 / 1024 + "M");    
+        startupLog = "Debugger VM maxMemory: " + Runtime.getRuntime().maxMemory() / 1024 / 1024 + "M";
+        JDI2JSON.userlog(startupLog);
 
         // just a sanity check, can the debugger VM see this NoopMain?
         traceprinter.shoelace.NoopMain.main(null); 
@@ -68,11 +115,66 @@ public class InMemory {
         // the parent directory of traceprinter; using -cp does not
         // reliably pass on to the debuggee.
 
+        boolean daemon = false;
+        int port = -1;
+        int poolSize = 0;
+        int cacheMegabytes = -1;
+        File cacheDir = null;
+        int traceCacheMegabytes = -1;
+        File traceCacheDir = null;
+        for (String arg : args) {
+            if (arg.equals("--daemon"))
+                daemon = true;
+            else if (arg.startsWith("--port=")) {
+                daemon = true;
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            }
+            else if (arg.startsWith("--pool=")) 
+                poolSize = Integer.parseInt(arg.substring("--pool=".length()));
+            else if (arg.equals("--reuse"))
+                recycleVMs = true;
+            else if (arg.startsWith("--compile-cache="))
+                cacheMegabytes = Integer.parseInt(arg.substring("--compile-cache=".length()));
+            else if (arg.startsWith("--compile-cache-dir="))
+                cacheDir = new File(arg.substring("--compile-cache-dir=".length()));
+            else if (arg.startsWith("--trace-cache="))
+                traceCacheMegabytes = Integer.parseInt(arg.substring("--trace-cache=".length()));
+            else if (arg.startsWith("--trace-cache-dir="))
+                traceCacheDir = new File(arg.substring("--trace-cache-dir=".length()));
+            else if (arg.startsWith("--array-pages="))
+                ArrayPages.maxBytes = Integer.parseInt(arg.substring("--array-pages=".length())) * 1024L * 1024L;
+        }
+
+        recycleVMs &= daemon;
+        if (daemon && (poolSize > 0 || recycleVMs))
+            pool = new VMPool(poolSize);
+
+        // by default, only a long-running daemon keeps compiles in memory
+        if (cacheMegabytes < 0)
+            cacheMegabytes = daemon ? 32 : 0;
+        if (cacheMegabytes > 0 || cacheDir != null)
+            compileCache = new BytecodeCache(cacheMegabytes * 1024L * 1024L, cacheDir);
+
+        if (traceCacheMegabytes < 0)
+            traceCacheMegabytes = daemon ? 32 : 0;
+        if (traceCacheMegabytes > 0 || traceCacheDir != null)
+            traceCache = new TraceCache(traceCacheMegabytes * 1024L * 1024L, traceCacheDir);
+
         try {
-            new InMemory(
-                         Json.createReader(new InputStreamReader
-                                           (System.in, "UTF-8"))
-                         .readObject());
+            PrintStream out = new PrintStream(System.out, true, "UTF-8");
+            if (port >= 0)
+                serveSocket(port);
+            else if (daemon)
+                serve(System.in, out);
+            else {
+                JDI2JSON.timings = new Timings();
+                long parsing = System.nanoTime();
+                JsonObject request = Json.createReader(new InputStreamReader
+                                                       (System.in, "UTF-8"))
+                    .readObject();
+                JDI2JSON.timings.add("parse", parsing);
+                new InMemory(request, out, false);
+            }
         } 
         catch (IOException e) {
             System.out.print(JDI2JSON.compileErrorOutput("[could not read user code]",
@@ -81,21 +183,120 @@ public class InMemory {
         }
     }
 
-    // convenience version of JDI2JSON method
-    void compileError(String msg, long row, long col) {
+    /* Daemon mode: one warm debugger VM handles a stream of requests.
+       Each line of input is a request object (same format as the
+       single-shot stdin), and each trace is printed on one line.
+       Requests are handled one at a time, since the tracer keeps
+       some of its configuration in static fields. */
+    static void serve(InputStream in, PrintStream out) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.trim().isEmpty()) continue;
+            handleRequest(line, out);
+        }
+    }
+
+    // same as serve, but over local socket connections, one at a time
+    static void serveSocket(int port) throws IOException {
+        try (java.net.ServerSocket server = 
+             new java.net.ServerSocket(port, 50, java.net.InetAddress.getLoopbackAddress())) {
+            while (true) {
+                try (java.net.Socket client = server.accept()) {
+                    serve(client.getInputStream(), 
+                          new PrintStream(client.getOutputStream(), true, "UTF-8"));
+                }
+                catch (IOException e) {
+                    System.err.println("Connection failed: " + e);
+                }
+            }
+        }
+    }
+
+    static void handleRequest(String line, PrintStream out) {
+        JDI2JSON.userlogged = null;
+        if (startupLog != null)
+            JDI2JSON.userlog(startupLog);
+        JDI2JSON.timings = new Timings();
+        JSONTracingThread.resetLimits();
+        InMemory im = null;
         try {
-            PrintStream out = new PrintStream(System.out, true, "UTF-8");
-            out.print(JDI2JSON.compileErrorOutput(usercode, msg, row, col));
+            long parsing = System.nanoTime();
+            JsonObject request = Json.createReader(new StringReader(line)).readObject();
+            JDI2JSON.timings.add("parse", parsing);
+            if (request.containsKey("page"))
+                out.print(page(request));
+            else {
+                im = new InMemory(request, out, true);
+                if (im.tt != null)
+                    im.tt.join();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (RuntimeException e) {
+            out.print(JDI2JSON.compileErrorOutput("[could not read user code]",
+                                                  "Internal error: " + e, 1, 1));
         }
-        catch (UnsupportedEncodingException e) { //fallback
-            System.out.print(JDI2JSON.compileErrorOutput(usercode, msg, row, col));
+        out.println();
+        out.flush();
+
+        // reset the debuggee after replying, so it's off the critical path
+        if (im != null && im.reuseVM && im.vm != null) {
+            if (im.tt != null && im.tt.canRecycle())
+                pool.recycle(im.vm, im.tt.theThread);
+            else
+                VMPool.discard(im.vm);
+        }
+    }
+
+    /* Answers {"page": id, "step": s, "array": a, "from": i, "to": j}
+       with elements i to j-1 of the windowed array a at step s of the
+       trace whose "array_pages" was id, or with {"error": reason}. */
+    static JsonObject page(JsonObject request) {
+        for (String key : new String[] {"step", "array", "from", "to"})
+            if (!(request.get(key) instanceof JsonNumber))
+                return Json.createObjectBuilder()
+                    .add("error", "a page request needs a number \"" + key + "\"")
+                    .build();
+        ArrayPages pages = request.get("page") instanceof JsonString
+            ? ArrayPages.get(request.getString("page")) : null;
+        if (pages == null)
+            return Json.createObjectBuilder()
+                .add("error", "no such trace, or it was forgotten")
+                .build();
+        return pages.page(request.getInt("step"), 
+                          request.getJsonNumber("array").longValue(),
+                          request.getInt("from"), 
+                          request.getInt("to"));
+    }
+
+    // convenience version of JDI2JSON method
+    void compileError(String msg, long row, long col) {
+        if (ndjson) {
+            out.println(JDI2JSON.outputHeader(usercode, null));
+            out.println(JDI2JSON.errorPoint(msg, row, col));
+            LightJson.write(JDI2JSON.outputTrailer("error"), out, JDI2JSON.reportedTimings());
         }
+        else
+            LightJson.write(JDI2JSON.compileErrorOutput(usercode, msg, row, col), out, 
+                            JDI2JSON.reportedTimings());
     }
 
     // figure out the class name, then compile and run main([])
-    InMemory(JsonObject frontend_data) {
+    InMemory(JsonObject frontend_data, PrintStream out, boolean daemon) {
+        this.out = out;
+        this.daemon = daemon;
         this.usercode = frontend_data.getJsonString("usercode").getString();
         this.optionsObject = frontend_data.getJsonObject("options");
+
+        // options.engine picks the tracing engine, "jdi" (the default) or "instrument"
+        JsonValue engine = optionsObject.get("engine");
+        if (engine instanceof JsonString && ((JsonString)engine).getString().equals("instrument"))
+            instrument = true;
+        else if (engine instanceof JsonString && !((JsonString)engine).getString().equals("jdi"))
+            JDI2JSON.userlog("Tracing engine " + engine + " is not available, using jdi");
         this.argsArray = frontend_data.getJsonArray("args");
         this.givenStdin = frontend_data.getJsonString("stdin").getString();
 	stdin = this.givenStdin;
@@ -108,6 +309,29 @@ public class InMemory {
                 JSONTracingThread.MAX_STACK_SIZE = visualizer_args.getJsonNumber("MAX_STACK_SIZE").intValue();
             if (visualizer_args.getJsonNumber("MAX_WALLTIME_SECONDS") != null)
                 JSONTracingThread.MAX_WALLTIME_SECONDS = visualizer_args.getJsonNumber("MAX_WALLTIME_SECONDS").intValue();
+            if (visualizer_args.getJsonNumber("ARRAY_WINDOW") != null)
+                arrayWindow = visualizer_args.getJsonNumber("ARRAY_WINDOW").intValue();
+            if (visualizer_args.get("OUTPUT_FORMAT") instanceof JsonString)
+                ndjson = visualizer_args.getString("OUTPUT_FORMAT").equals("ndjson");
+            if (visualizer_args.getJsonNumber("DELTA_KEYFRAME") != null)
+                deltaKeyframe = visualizer_args.getJsonNumber("DELTA_KEYFRAME").intValue();
+            jdwpProfile = visualizer_args.getBoolean("JDWP_PROFILE", false);
+            JDI2JSON.timings.report = visualizer_args.getBoolean("TIMINGS", false) || jdwpProfile;
+        }
+
+        // the same deterministic request always gives the same trace
+        // (but windowed traces in daemon mode refer to pages kept in memory,
+        // and a streamed trace is never held in memory as a whole;
+        // timings are only true of the run that made them)
+        if (traceCache != null && TraceCache.nondeterminismReason(usercode) == null
+            && !(daemon && arrayWindow > 0) && !ndjson && !JDI2JSON.timings.report) {
+            traceKey = TraceCache.key(frontend_data);
+            String cached = traceCache.get(traceKey);
+            if (cached != null) {
+                out.print(cached);
+                out.flush();
+                return;
+            }
         }
 
         // not 100% accurate, if people have multiple top-level classes + public inner classes
@@ -127,6 +351,7 @@ public class InMemory {
             }
         }
 
+        long compiling = System.nanoTime();
         CompileToBytes c2b = new CompileToBytes();
 
         c2b.compilerOutput = new StringWriter();
@@ -138,49 +363,160 @@ public class InMemory {
         /*
           For some reason the JVM at Princeton doesn't actually figure out
           how to read these particular files off its classpath. So we'll
-          just throw them all in there manually. 
+          just throw them all in there manually: they are compiled once,
+          the user code is compiled against them, and their bytecode is
+          loaded into the debuggee along with the user's.
           TODO: Optimize and only use files actually referenced by student code.
          */
         boolean isPrinceton = System.getProperty("java.class.path").contains("cos126");
 
+        String[][] fileinfo = new String[][] {{mainClass, usercode}};
+        String[][] keyinfo = fileinfo;
+        Map<String, byte[]> stdlib = null;
         if (isPrinceton) {
-            String[][] fileinfo = new String[][] {
-                {"Stack", getFileContents("cp/visualizer-stdlib/Stack.java")},
-                {"Queue", getFileContents("cp/visualizer-stdlib/Queue.java")},
-                {"ST", getFileContents("cp/visualizer-stdlib/ST.java")},
-                {"StdIn", getFileContents("cp/visualizer-stdlib/StdIn.java")},
-                {"StdOut", getFileContents("cp/visualizer-stdlib/StdOut.java")},
-                {"Stopwatch", getFileContents("cp/visualizer-stdlib/Stopwatch.java")},
-                {mainClass, usercode}
-            };           
-            bytecode = c2b.compileFiles(fileinfo);
+            stdlib = princetonStdlib();
+            if (stdlib == null) {
+                compileError("Internal error: could not compile the stdlib", 0, 0);
+                return;
+            }
+            c2b.classPath = stdlib;
+            // the user's bytecode also depends on the stdlib source
+            keyinfo = new String[princetonStdlibSources.length + 1][];
+            System.arraycopy(princetonStdlibSources, 0, keyinfo, 0, princetonStdlibSources.length);
+            keyinfo[princetonStdlibSources.length] = fileinfo[0];
         }
-        else {
-            // do the normal thing
-            bytecode = c2b.compileFile(mainClass, usercode);
+
+        // a cache hit skips javac, compile errors included
+        BytecodeCache.Entry compiled = null;
+        String cacheKey = null;
+        if (compileCache != null) {
+            cacheKey = BytecodeCache.key(keyinfo, c2b.options);
+            compiled = compileCache.get(cacheKey);
         }
 
-        if (bytecode == null) {
-            for (Diagnostic<? extends JavaFileObject> err : errorCollector.getDiagnostics())
-                if (err.getKind() == Diagnostic.Kind.ERROR) {
-                    compileError("Error: " + err.getMessage(null), Math.max(0, err.getLineNumber()),
-                                 Math.max(0, err.getColumnNumber()));
+        if (compiled == null) {
+            bytecode = c2b.compileFiles(fileinfo);
+            if (bytecode != null)
+                compiled = BytecodeCache.Entry.success(bytecode);
+            else {
+                for (Diagnostic<? extends JavaFileObject> err : errorCollector.getDiagnostics())
+                    if (err.getKind() == Diagnostic.Kind.ERROR) {
+                        compiled = BytecodeCache.Entry.error("Error: " + err.getMessage(null), 
+                                                             Math.max(0, err.getLineNumber()),
+                                                             Math.max(0, err.getColumnNumber()));
+                        break;
+                    }
+                if (compiled == null) {
+                    compileError("Compiler did not work, but reported no ERROR?!?!", 0, 0);
                     return;
                 }
-            compileError("Compiler did not work, but reported no ERROR?!?!", 0, 0);
+            }
+            if (compileCache != null)
+                compileCache.put(cacheKey, compiled);
+        }
+        JDI2JSON.timings.add("compile", compiling);
+
+        if (compiled.isError()) {
+            compileError(compiled.errmsg, compiled.row, compiled.col);
             return;
         }
+        bytecode = compiled.bytecodes;
+        if (stdlib != null) {
+            bytecode = new TreeMap<>(stdlib);
+            bytecode.putAll(compiled.bytecodes);
+        }
 
-        vm = launchVM("traceprinter.shoelace.NoopMain");
-        vm.setDebugTraceMode(0);
+        if (instrument) {
+            String reason = instrumentUnsupported();
+            if (reason != null) {
+                JDI2JSON.userlog("The instrument engine can't trace this program (" + reason + "), using jdi");
+                instrument = false;
+            }
+        }
+
+        long launching = System.nanoTime();
+        if (pool != null) {
+            VMPool.Parked parked = pool.take();
+            if (parked != null) {
+                vm = parked.vm;
+                parkedThread = parked.thread;
+                reuseVM = recycleVMs;
+            }
+        }
+        else
+            vm = launchVM("traceprinter.shoelace.NoopMain");
+        JDI2JSON.timings.add("launch", launching);
+        if (vm == null) {
+            compileError("Internal error: could not launch the debuggee VM", 0, 0);
+            return;
+        }
+        if (jdwpProfile)
+            JDI2JSON.timings.jdwp = JDWPProfile.start(vm);
+        else
+            vm.setDebugTraceMode(0);
 
-        JSONTracingThread tt = new JSONTracingThread(this);
+        tt = new JSONTracingThread(this);
         tt.start();
 
-        vm.resume();
+        if (parkedThread == null) // a recycled VM must stay suspended
+            vm.resume();
+    }
+
+    // why the instrument engine can't do this request, or null if it can
+    private String instrumentUnsupported() {
+        if (arrayWindow > 0)
+            return "ARRAY_WINDOW is set";
+        if (jdwpProfile)
+            return "JDWP_PROFILE is set";
+        if (optionsObject.getBoolean("showAllFields", false))
+            return "showAllFields is set";
+        List<byte[]> userClasses = new ArrayList<>();
+        for (Map.Entry<String, byte[]> me : bytecode.entrySet())
+            if (!JDI2JSON.in_builtin_package(me.getKey()))
+                userClasses.add(me.getValue());
+        // by name, since the default make target leaves the engine out
+        try {
+            return (String)Class.forName("traceprinter.shoelace.instrument.Instrumenter")
+                .getMethod("unsupported", Collection.class).invoke(null, userClasses);
+        }
+        catch (ClassNotFoundException | LinkageError e) {
+            return "it isn't built, see make instrument";
+        }
+        catch (ReflectiveOperationException e) {
+            return "Internal error " + e;
+        }
+    }
+
+    // Princeton only: the stdlib sources, and their bytecode once compiled
+    private static String[][] princetonStdlibSources = null;
+    private static Map<String, byte[]> princetonStdlibBytecode = null;
+
+    // compiles the stdlib the first time; returns null if that fails
+    static synchronized Map<String, byte[]> princetonStdlib() {
+        if (princetonStdlibBytecode == null) {
+            String[][] sources = new String[][] {
+                {"Stack", getFileContents("cp/visualizer-stdlib/Stack.java")},
+                {"Queue", getFileContents("cp/visualizer-stdlib/Queue.java")},
+                {"ST", getFileContents("cp/visualizer-stdlib/ST.java")},
+                {"StdIn", getFileContents("cp/visualizer-stdlib/StdIn.java")},
+                {"StdOut", getFileContents("cp/visualizer-stdlib/StdOut.java")},
+                {"Stopwatch", getFileContents("cp/visualizer-stdlib/Stopwatch.java")}
+            };
+
+            CompileToBytes c2b = new CompileToBytes();
+            c2b.compilerOutput = new StringWriter();
+            c2b.options = Arrays.asList("-g","-Xmaxerrs","1");
+            Map<String, byte[]> bytecode = c2b.compileFiles(sources);
+            if (bytecode == null)
+                return null;
+
+            princetonStdlibSources = sources;
+            princetonStdlibBytecode = Collections.unmodifiableMap(bytecode);
+        }
+        return princetonStdlibBytecode;
     }
 
-    VirtualMachine launchVM(String className) {
+    static VirtualMachine launchVM(String className) {
         LaunchingConnector connector = theCommandLineLaunchConnector();
         try {
 
@@ -264,7 +600,7 @@ http://docs.oracle.com/javase/7/docs/jdk/api/jpda/jdi/com/sun/jdi/connect/Connec
         return null; // when caught
     }
 
-    LaunchingConnector theCommandLineLaunchConnector() {
+    static LaunchingConnector theCommandLineLaunchConnector() {
         for (Connector connector : 
                  Bootstrap.virtualMachineManager().allConnectors()) 
             if (connector.name().equals("com.sun.jdi.CommandLineLaunch"))
@@ -29,6 +29,9 @@ public class JDI2JSON {
         String getContents() {
             return contents.toString();
         }
+        int length() {
+            return contents.getBuffer().length();
+        }
         InputPuller(InputStream ir) {
             try {
                 vm_link = new InputStreamReader(ir, "UTF-8");
@@ -56,6 +59,9 @@ public class JDI2JSON {
     private VirtualMachine vm;
     private InputPuller stdout, stderr;
     private JsonObject last_ep = null;
+
+    // of last_ep and of the execution point being built, see reallyChanged
+    private long last_fingerprint = 0, fingerprint = 0;
     private TreeMap<Long, ObjectReference> heap;
     private TreeSet<Long> heap_done;
 
@@ -68,11 +74,29 @@ public class JDI2JSON {
 
     public static StringBuilder userlogged;
 
+    // of the current request, see Timings
+    public static Timings timings = new Timings();
+
+    // null unless the request asked for its timings
+    static Timings reportedTimings() {
+        return timings.report ? timings : null;
+    }
+
     public static boolean showVoid = true;
 
     boolean showStringsAsValues = true;
     boolean showAllFields = false;
 
+    // visualizer_args ARRAY_WINDOW: of a long array, only show this many
+    // elements at each end, plus the ones changed since the last step.
+    // 0 shows everything
+    int arrayWindow = 0;
+
+    // if non-null, where the full windowed arrays are saved (daemon mode)
+    ArrayPages pages = null;
+    private Map<Long, String> pendingPages = null;
+    private int emitted = 0; // execution points returned so far
+
     public JDI2JSON(VirtualMachine vm, InputStream vm_stdout, InputStream vm_stderr, JsonObject optionsObject) {
         stdout = new InputPuller(vm_stdout);
         stderr = new InputPuller(vm_stderr);
@@ -90,8 +114,9 @@ public class JDI2JSON {
     }
     
     // returns null when nothing changed since the last time
-    // (or when only event type changed and new value is "step_line")
-    public ArrayList<JsonObject> convertExecutionPoint(Event e, Location loc, ThreadReference t) {
+    // (or when only event type changed and new value is "step_line");
+    // lineEvent shows e as the breakpoint JDWP would have reported with it
+    public ArrayList<JsonObject> convertExecutionPoint(Event e, boolean lineEvent, Location loc, ThreadReference t) {
         stdout.pull();
         stderr.pull();        
 
@@ -103,12 +128,15 @@ public class JDI2JSON {
         
         heap_done = new TreeSet<Long>();
         heap = new TreeMap<>();
+        if (pages != null)
+            pendingPages = new HashMap<>();
+        fingerprint = 0;
 
 	JsonValue returnValue = null;
 
         JsonObjectBuilder result = Json.createObjectBuilder();
         result.add("stdout", stdout.getContents());
-        if (e instanceof MethodEntryEvent) {
+        if (e instanceof MethodEntryEvent && !lineEvent) {
             result.add("event", "call");
 	    //frame_stack.add(frame_ticker++);
             result.add("line", loc.lineNumber());
@@ -118,7 +146,7 @@ public class JDI2JSON {
 	    result.add("event", "return");
 	    result.add("line", loc.lineNumber());
         }
-        else if (e instanceof BreakpointEvent || e instanceof StepEvent) {
+        else if (lineEvent || e instanceof BreakpointEvent || e instanceof StepEvent) {
             result.add("event", "step_line");
             result.add("line", loc.lineNumber());
         }
@@ -168,15 +196,18 @@ public class JDI2JSON {
         JsonObjectBuilder statics = Json.createObjectBuilder();
         JsonArrayBuilder statics_a = Json.createArrayBuilder();
         for (ReferenceType rt : staticListable) 
-            if (rt.isInitialized() && !in_builtin_package(rt.name())) 
-                for (Field f : rt.visibleFields()) 
-                    if (f.isStatic()) {
-                        statics.add(rt.name()+"."+f.name(),
-                                    convertValue(rt.getValue(f)));
-                        statics_a.add(rt.name()+"."+f.name());
-                    }
+            if (rt.isInitialized() && !in_builtin_package(rt.name())) {
+                List<Field> staticFields = typeInfo(rt).staticFields(rt);
+                if (staticFields.isEmpty()) continue;
+                Map<Field, Value> values = rt.getValues(staticFields);
+                for (Field f : staticFields) {
+                    statics.add(rt.name()+"."+f.name(),
+                                convertValue(values.get(f)));
+                    statics_a.add(rt.name()+"."+f.name());
+                }
+            }
         if (stdinRT != null && stdinRT.isInitialized()) {
-            int stdinPosition = ((IntegerValue)stdinRT.getValue(stdinRT.fieldByName("position"))).value();
+            int stdinPosition = ((IntegerValue)stdinRT.getValue(field(stdinRT, "position"))).value();
             result.add("stdinPosition", stdinPosition);
             /*            statics.add("stdin.Position", stdinPosition);
                           statics_a.add("stdin.Position");*/
@@ -188,13 +219,23 @@ public class JDI2JSON {
         result.add("func_name", loc.method().name());
         
         JsonObjectBuilder heapDescription = Json.createObjectBuilder();
-        convertHeap(heapDescription);
+        long heapFingerprint = convertHeap(heapDescription);
         result.add("heap", heapDescription);
 
 	JsonObject this_ep = result.build();
+        for (Map.Entry<String, JsonValue> me : this_ep.entrySet())
+            if (!me.getKey().equals("stack_to_render") && !me.getKey().equals("heap")) {
+                fingerprint(me.getKey());
+                fingerprint(me.getValue());
+            }
+        fingerprint = fingerprint * 1000003 + heapFingerprint;
 	if (reallyChanged(last_ep, this_ep)) {
 	    results.add(this_ep);
 	    last_ep = this_ep;
+            last_fingerprint = fingerprint;
+            if (pages != null && !pendingPages.isEmpty())
+                pages.add(emitted, pendingPages);
+            emitted++;
 	}
         
         
@@ -211,7 +252,7 @@ public class JDI2JSON {
                                         "StdOut", "StdRandom", "StdStats", "Stopwatch", "Stack", "Queue", "ST", "Point", "ST"};
 
     // input format: [package.]ClassName:lineno or [package.]ClassName
-    public boolean in_builtin_package(String S) {
+    public static boolean in_builtin_package(String S) {
         S = S.split(":")[0];
         for (String badPrefix: builtin_packages)
             if (S.startsWith(badPrefix+"."))
@@ -251,36 +292,21 @@ public class JDI2JSON {
         return true;
     }
     
-    private JsonObject createReturnEventFrom(Location loc, JsonObject base_ep, JsonValue returned) {
-	try {
-	    JsonObjectBuilder result = Json.createObjectBuilder();
-	    result.add("event", "return");
-	    result.add("line", loc.lineNumber());
-	    for (Map.Entry<String, JsonValue> me : base_ep.entrySet()) {
-		if (me.getKey().equals("event") || me.getKey().equals("line")) 
-		    {}
-		else if (me.getKey().equals("stack_to_render")) {
-		    JsonArray old_stack_to_render = (JsonArray)me.getValue();
-		    JsonObject old_top_frame = (JsonObject)(old_stack_to_render.get(0));
-		    JsonObject old_top_frame_vars = (JsonObject)(old_top_frame.get("encoded_locals"));
-		    JsonArray old_top_frame_vars_o = (JsonArray)(old_top_frame.get("ordered_varnames"));
-		    result.add("stack_to_render", 
-			       jsonModifiedArray(old_stack_to_render, 0,
-						 jsonModifiedObject
-						 (jsonModifiedObject
-						  (old_top_frame, 
-						   "encoded_locals", 
-						   jsonModifiedObject(old_top_frame_vars, "__return__", returned)),
-						  "ordered_varnames", 
-						  jsonModifiedArray(old_top_frame_vars_o, -1, jsonString("__return__")))));
-		}
-		else result.add(me.getKey(), me.getValue());
-	    }
-	    return result.build();
-	}
-	catch (IndexOutOfBoundsException exc) {
-	    return base_ep;
-	}
+    /* True if an execution point at loc, from the event right after
+       a converted one at prev, would only be last_ep again: it is on
+       the same line of the same method, one instruction later, that
+       instruction only reads (see Bytecodes.isPure), and there's no
+       new output. Then it needn't be converted at all. */
+    public boolean unchangedSince(Location prev, Location loc) {
+        if (prev == null || last_ep == null || !loc.virtualMachine().canGetBytecodes()
+            || !prev.method().equals(loc.method()) || prev.lineNumber() != loc.lineNumber())
+            return false;
+        byte[] code = loc.method().bytecodes();
+        int bci = (int)prev.codeIndex();
+        if (!Bytecodes.isPure(code, bci) || bci + Bytecodes.length(code, bci) != loc.codeIndex())
+            return false;
+        stdout.pull();
+        return stdout.length() == last_ep.getString("stdout").length();
     }
 
     // issue: the frontend uses persistent frame ids but JDI doesn't provide them
@@ -288,80 +314,164 @@ public class JDI2JSON {
     // approach 2, using an id based on stack depth, does not work w/ frontend
     // approach 3, just give each frame at each execution point a unique id,
     // is what we do. but we also want to skip animating e.p.'s where nothing changed,
-    // and if only the frame ids changed, we should treat it as if nothing changed
+    // and if only the frame ids changed, we should treat it as if nothing changed.
+    // the fingerprint leaves out frame ids, and equal execution points always
+    // have equal fingerprints, so only a match needs a closer look. A match is
+    // common (most dropped steps in STEP_MIN mode are one), but it can't be
+    // trusted alone: the fingerprint is mixed from 32-bit hashCodes, and a
+    // JsonObject's is just the sum of its entries'. The closer look mostly
+    // meets heap entries shared with last_ep, which compare by identity;
+    // on the longer traces of engine-corpus it was about 1% of convert time.
     private boolean reallyChanged(JsonObject old_ep, JsonObject new_ep) {
-        if (old_ep == null) return true;
-        return !stripFrameIDs(new_ep).equals(stripFrameIDs(old_ep));
+        if (old_ep == null || fingerprint != last_fingerprint) return true;
+        for (Map.Entry<String, JsonValue> me : new_ep.entrySet())
+            if (!me.getKey().equals("stack_to_render") && !me.getValue().equals(old_ep.get(me.getKey())))
+                return true;
+        if (old_ep.size() != new_ep.size()) return true;
+        JsonArray old_frames = (JsonArray)old_ep.get("stack_to_render");
+        JsonArray new_frames = (JsonArray)new_ep.get("stack_to_render");
+        if (old_frames.size() != new_frames.size()) return true;
+        for (int i=0; i<new_frames.size(); i++) {
+            JsonObject old_frame = (JsonObject)old_frames.get(i);
+            for (Map.Entry<String, JsonValue> me : ((JsonObject)new_frames.get(i)).entrySet())
+                if (!me.getKey().equals("unique_hash") && !me.getKey().equals("frame_id")
+                    && !me.getValue().equals(old_frame.get(me.getKey())))
+                    return true;
+        }
+        return false;
     }
 
-    private JsonObject stripFrameIDs(JsonObject ep) {
-        JsonArrayBuilder result = Json.createArrayBuilder();
-        for (JsonValue frame : (JsonArray)(ep.get("stack_to_render"))) {
-                 result.add(jsonModifiedObject
-                            (jsonModifiedObject( (JsonObject)frame,
-                                                 "unique_hash", 
-                                                 jsonString("")),
-                             "frame_id",
-                             jsonInt(0)));
-             }
-        return jsonModifiedObject(ep, "stack_to_render", result.build());
+    // mixes part of the execution point being built into its fingerprint
+    private void fingerprint(Object part) {
+        fingerprint = fingerprint * 1000003 + (part == null ? 0 : part.hashCode());
     }
 
+    /* Everything convertFrame needs to know about a method, worked
+       out the first time one of its frames is converted.
+
+       KNOWN ISSUE:
+       .arguments() gets the args which have names in LocalVariableTable,
+       but if there are none, we get an IllegalArgExc, and can use .getArgumentValues()
+       However, sometimes some args have names but not all. Such as within synthetic
+       lambda methods like "lambda$inc$0". For an unknown reason, trying .arguments()
+       causes a JDWP error in such frames. So sadly, those frames are incomplete. */
+    private class FrameLayout {
+        final boolean JDWPerror;         // getArgumentValues fails, as above
+        final List<LocalVariable> args;  // null if they have no names
+        final boolean completedArgs;     // every arg has a name
+        final List<LocalVariable> vars;  // the non-args we may show, in variables() order
+        // ordered_varnames of the non-args, by which of them are in scope
+        private final Map<BitSet, List<String>> orders = new HashMap<>();
+
+        FrameLayout(StackFrame sf) {
+            Method m = sf.location().method();
+            boolean error = false;
+            try {
+                sf.getArgumentValues();
+            }
+            catch (com.sun.jdi.InternalException e) {
+                if (e.toString().contains("Unexpected JDWP Error: 35")) // expect JDWP error 35
+                    error = true;
+                else {
+                    throw e;
+                }
+            }
+            JDWPerror = error;
+
+            List<LocalVariable> a = null;
+            try {
+                a = m.arguments(); //throwing statement
+            }
+            catch (AbsentInformationException e) {
+            }
+            args = a;
+            completedArgs = args != null && !JDWPerror
+                && args.size() == m.argumentTypeNames().size();
+
+            List<LocalVariable> v = null;
+            try {
+                v = new ArrayList<>();
+                for (LocalVariable lv : m.variables()) //throwing statement
+                    if (!lv.isArgument())
+                        if (showAllFields || !lv.name().endsWith("$")) // skip for-loop synthetics (exists in Java 7, but not 8)
+                            v.add(lv);
+            }
+            catch (AbsentInformationException e) {
+                v = null;
+            }
+            vars = v;
+        }
+
+        /* We're using the fact that the hashCode tells us something
+           about the variable's position (which is subject to change)
+           to compensate for that the natural order of variables()
+           is often different from the declaration order (see LinkedList.java) */
+        List<String> order(BitSet inScope) {
+            List<String> result = orders.get(inScope);
+            if (result == null) {
+                TreeMap<Integer, String> orderByHash = new TreeMap<>();
+                int offset = 0;
+                for (int i = inScope.nextSetBit(0); i >= 0; i = inScope.nextSetBit(i+1)) {
+                    LocalVariable lv = vars.get(i);
+                    if (orderByHash.isEmpty())
+                        offset = lv.hashCode();
+                    orderByHash.put(lv.hashCode() - offset, lv.name());
+                }
+                result = new ArrayList<>(orderByHash.values());
+                orders.put(inScope, result);
+            }
+            return result;
+        }
+    }
+
+    private Map<Method, FrameLayout> frameLayouts = new HashMap<>();
+
+    /* The values of a frame's variables are read with one getValues,
+       and what doesn't change from one step to the next (which
+       variables there are, in what order) comes from its FrameLayout. */
     private JsonObjectBuilder convertFrame(StackFrame sf, boolean highlight, JsonValue returnValue) {
         JsonObjectBuilder result = Json.createObjectBuilder();
         JsonArrayBuilder result_ordered = Json.createArrayBuilder();
-        if (sf.thisObject() != null) {
-            result.add("this", convertValue(sf.thisObject()));
+        ObjectReference thisObject = sf.thisObject();
+        if (thisObject != null) {
+            result.add("this", convertValue(thisObject));
             result_ordered.add("this");
 	}
 
-        // list args first
-        /* KNOWN ISSUE:
-           .arguments() gets the args which have names in LocalVariableTable,
-           but if there are none, we get an IllegalArgExc, and can use .getArgumentValues()
-           However, sometimes some args have names but not all. Such as within synthetic
-           lambda methods like "lambda$inc$0". For an unknown reason, trying .arguments()
-           causes a JDWP error in such frames. So sadly, those frames are incomplete. */
-        
-        boolean JDWPerror = false;
-        try {
-            sf.getArgumentValues();
-        }
-        catch (com.sun.jdi.InternalException e) {
-            if (e.toString().contains("Unexpected JDWP Error: 35")) // expect JDWP error 35
-                JDWPerror = true;
-            else {
-                throw e;
-            }
+        Method m = sf.location().method();
+        FrameLayout layout = frameLayouts.get(m);
+        if (layout == null) {
+            layout = new FrameLayout(sf);
+            frameLayouts.put(m, layout);
         }
 
-        List<LocalVariable> frame_vars = null, frame_args = null;
-        boolean completed_args = false;
-        try {
-            // args make sense to show first
-            frame_args = sf.location().method().arguments(); //throwing statement
-            completed_args = !JDWPerror && frame_args.size() == sf.getArgumentValues().size();
-            for (LocalVariable lv : frame_args) {
-                //System.out.println(sf.location().method().getClass());
+        // the args, and the non-args in scope here
+        List<LocalVariable> reading = new ArrayList<>();
+        if (layout.args != null)
+            reading.addAll(layout.args);
+        BitSet inScope = new BitSet();
+        if (layout.vars != null)
+            for (int i=0; i<layout.vars.size(); i++)
+                if (layout.vars.get(i).isVisible(sf)) {
+                    inScope.set(i);
+                    reading.add(layout.vars.get(i));
+                }
+        Map<LocalVariable, Value> values = reading.isEmpty()
+            ? Collections.<LocalVariable, Value>emptyMap() : sf.getValues(reading);
+
+        // list args first
+        if (layout.args != null)
+            for (LocalVariable lv : layout.args) {
+                Value v = values.get(lv);
 		if (lv.name().equals("args")) {
-		    Value v = sf.getValue(lv);
 		    if (v instanceof ArrayReference && ((ArrayReference)v).length()==0) continue;
 		}
-                try {
-                    result.add(lv.name(),
-                               convertValue(sf.getValue(lv)));
-                    result_ordered.add(lv.name());
-                }
-                catch (IllegalArgumentException exc) {
-                    System.out.println("That shouldn't happen!");
-                }
+                result.add(lv.name(), convertValue(v));
+                result_ordered.add(lv.name());
             }
-        }
-        catch (AbsentInformationException e) {
-        }
         // args did not have names, like a functional interface call...
         // although hopefully a future Java version will give them names!
-        if (!completed_args && !JDWPerror) {
+        if (!layout.completedArgs && !layout.JDWPerror) {
             try {
                 List<Value> anon_args = sf.getArgumentValues();
                 for (int i=0; i<anon_args.size(); i++) {
@@ -373,51 +483,35 @@ public class JDI2JSON {
             }
         }
         
-        if (JDWPerror) {
+        if (layout.JDWPerror) {
             result.add("&hellip;?", jsonArray("NUMBER-LITERAL", jsonString("&hellip;?"))); // hack since number-literal is just html
             result_ordered.add("&hellip;?");
         }
 
         // now non-args
-        try {
-            /* We're using the fact that the hashCode tells us something
-               about the variable's position (which is subject to change)
-               to compensate for that the natural order of variables()
-               is often different from the declaration order (see LinkedList.java) */
-            frame_vars = sf.location().method().variables(); //throwing statement
-            TreeMap<Integer, String> orderByHash = null;
-            int offset = 0;
-            for (LocalVariable lv : frame_vars) 
-                if (!lv.isArgument()) 
-                    if (showAllFields || !lv.name().endsWith("$")) { // skip for-loop synthetics (exists in Java 7, but not 8)
-                        try {
-                            result.add(lv.name(),
-                                       convertValue(sf.getValue(lv)));
-                            if (orderByHash == null) {
-                                offset = lv.hashCode();
-                                orderByHash = new TreeMap<>();
-                            }
-                            orderByHash.put(lv.hashCode() - offset, lv.name());
-                        }
-                        catch (IllegalArgumentException exc) {
-                            // variable not yet defined, don't list it
-                        }
-                    }
-            if (orderByHash != null) // maybe no local vars
-                for (Map.Entry<Integer,String> me : orderByHash.entrySet())
-                    result_ordered.add(me.getValue());
-        }
-        catch (AbsentInformationException ex) {
-            //System.out.println("AIE: can't list variables in " + sf.location());
-        }     
+        if (!inScope.isEmpty()) {
+            for (int i = inScope.nextSetBit(0); i >= 0; i = inScope.nextSetBit(i+1)) {
+                LocalVariable lv = layout.vars.get(i);
+                result.add(lv.name(), convertValue(values.get(lv)));
+            }
+            for (String name : layout.order(inScope))
+                result_ordered.add(name);
+        }
         if (returnValue != null && (showVoid || returnValue != convertVoid)) {
             result.add("__return__", returnValue);
             result_ordered.add("__return__");
 	}        
+        String func_name = sf.location().method().name()+":"+sf.location().lineNumber();
+        JsonObject locals = result.build();
+        JsonArray ordered = result_ordered.build();
+        fingerprint(func_name);
+        fingerprint(locals);
+        fingerprint(ordered);
+        fingerprint(highlight);
 	return Json.createObjectBuilder()
-	    .add("func_name", sf.location().method().name()+":"+sf.location().lineNumber())
-	    .add("encoded_locals", result)
-	    .add("ordered_varnames", result_ordered)
+	    .add("func_name", func_name)
+	    .add("encoded_locals", locals)
+	    .add("ordered_varnames", ordered)
 	    .add("parent_frame_id_list", Json.createArrayBuilder())
 	    .add("is_highlighted", highlight)//frame_stack.size()-1)
 	    .add("is_zombie", false)
@@ -429,8 +523,10 @@ public class JDI2JSON {
     // used to show a single non-user frame when there is
     // non-user code running between two user frames
     private JsonObjectBuilder convertFrameStub(StackFrame sf) {
+        String func_name = "\u22EE\n"+sf.location().declaringType().name()+"."+sf.location().method().name();
+        fingerprint(func_name);
         return Json.createObjectBuilder()
-            .add("func_name", "\u22EE\n"+sf.location().declaringType().name()+"."+sf.location().method().name())
+            .add("func_name", func_name)
             .add("encoded_locals", Json.createObjectBuilder())//.add("...", "..."))
             .add("ordered_varnames", Json.createArrayBuilder())//.add("..."))
             .add("parent_frame_id_list", Json.createArrayBuilder())
@@ -441,8 +537,41 @@ public class JDI2JSON {
 	    .add("frame_id", frame_ticker);//frame_stack.get(level));
     }
     
-    void convertHeap(JsonObjectBuilder result) {
+    /* Objects converted at the last execution point, kept so that the
+       next one only re-reads the objects that could have changed.
+       Strings, boxed values and opaque library objects never change
+       how they look. Instances of user classes are dropped from here
+       when JSONTracingThread sees a write to one of their fields.
+       Arrays are always re-read (in bulk), but only re-converted if
+       an element changed. */
+    private class Converted {
+        JsonValue json;
+        List<ObjectReference> children = new ArrayList<>();
+        List<Value> arrayValues; // for arrays, what json was made from
+        String page;             // if windowed, its elements for ArrayPages
+        boolean showedChanges;   // windowed, so json depends on the last step too
+        int hash;                // of json, for the heap fingerprint
+    }
+
+    private Map<Long, Converted> converted = new HashMap<>();
+
+    // non-null while converting an object we'll keep: where its REFs go
+    private List<ObjectReference> children = null;
+
+    // user classes whose instance fields are watched for modification
+    Set<ReferenceType> watchedTypes = new HashSet<>();
+
+    // called on a ModificationWatchpointEvent
+    void fieldModified(ObjectReference obj) {
+        if (obj != null)
+            converted.remove(obj.uniqueID());
+    }
+
+    // returns a fingerprint of the heap, which doesn't depend on its order
+    long convertHeap(JsonObjectBuilder result) {
         heap_done = new java.util.TreeSet<>();
+        Map<Long, Converted> seen = new HashMap<>();
+        long fingerprint = 0;
         while (!heap.isEmpty()) {
             Map.Entry<Long, ObjectReference> first = heap.firstEntry();
             ObjectReference obj = first.getValue();
@@ -451,19 +580,198 @@ public class JDI2JSON {
             if (heap_done.contains(id))
                 continue;
             heap_done.add(id);
-            result.add(""+id, convertObject(obj, true));
+
+            Converted c = converted.get(id);
+            if (obj instanceof ArrayReference) {
+                List<Value> values = arrayValues((ArrayReference)obj);
+                if (c == null || !values.equals(c.arrayValues) || c.showedChanges) {
+                    List<Value> previous = c == null ? null : c.arrayValues;
+                    String page = c == null || !values.equals(previous) ? null : c.page;
+                    c = new Converted();
+                    c.page = page;
+                    c.arrayValues = values;
+                    children = c.children;
+                    c.json = convertArray(values, previous);
+                    c.hash = c.json.hashCode();
+                    children = null;
+                    c.showedChanges = isWindowed(values) && previous != null && !values.equals(previous);
+                }
+                else {
+                    for (ObjectReference child : c.children)
+                        heap.put(child.uniqueID(), child);
+                }
+                if (pendingPages != null && isWindowed(values)) {
+                    if (c.page == null) // unchanged pages share it
+                        c.page = ArrayPages.elements(values);
+                    pendingPages.put(id, c.page);
+                }
+            }
+            else if (c != null) {
+                for (ObjectReference child : c.children)
+                    heap.put(child.uniqueID(), child);
+            }
+            else if (canKeep(obj)) {
+                c = new Converted();
+                children = c.children;
+                c.json = convertObject(obj, true);
+                c.hash = c.json.hashCode();
+                children = null;
+            }
+            else {
+                JsonValue json = convertObject(obj, true);
+                fingerprint += mix(id, json.hashCode());
+                result.add(""+id, json);
+                continue;
+            }
+            seen.put(id, c);
+            fingerprint += mix(id, c.hash);
+            result.add(""+id, c.json);
         }
+        // forget objects no longer visible, so this stays the size of the heap
+        converted = seen;
+        return fingerprint;
+    }
+
+    // spreads a heap entry over 64 bits, so that summing entries loses little
+    private static long mix(long id, int hash) {
+        long x = id * 0x9E3779B97F4A7C15L + hash;
+        x = (x ^ (x >>> 32)) * 0xD6E8FEB86659FD93L;
+        return x ^ (x >>> 32);
+    }
+
+    // can we reuse this object's conversion until it's modified?
+    private boolean canKeep(ObjectReference obj) {
+        if (obj instanceof StringReference) return true;
+        return typeInfo(obj.referenceType()).keepable;
     }
     
-    List<String> wrapperTypes = 
-        new ArrayList<String>
+    Set<String> wrapperTypes = 
+        new HashSet<String>
         (Arrays.asList
          ("Byte Short Integer Long Float Double Character Boolean".split(" ")));
 
+    /* Everything convertObject needs to know about a type, worked out
+       the first time we see an object of that type in this trace. */
+    private class TypeInfo {
+        final String name;
+        final boolean wrapper;      // java.lang.Integer etc.
+        final String kind;          // QUEUE, STACK, DICT, STOPWATCH, INSTANCE
+        final String displayName;   // label of an INSTANCE
+        final boolean showGuts;
+        final List<Field> fields;   // as passed to getValues, to keep its order
+        final boolean keepable;     // see canKeep
+        private final Map<String, Field> byName = new HashMap<>();
+
+        TypeInfo(ReferenceType rt) {
+            name = rt.name();
+            wrapper = name.startsWith("java.lang.") && wrapperTypes.contains(name.substring(10));
+            if (name.equals("Queue")) kind = "QUEUE";
+            else if (name.equals("Stack")) kind = "STACK";
+            else if (name.equals("ST")) kind = "DICT";
+            else if (name.equals("Stopwatch")) kind = "STOPWATCH";
+            else kind = "INSTANCE";
+            displayName = wrapper ? name.substring(10) : displayName(rt);
+            showGuts = showGuts(rt);
+            // fields: -inherited -hidden +synthetic
+            // visibleFields: +inherited -hidden +synthetic
+            // allFields: +inherited +hidden +repeated_synthetic
+            fields = showGuts ? (showAllFields ? rt.allFields() : rt.visibleFields()) : null;
+
+            if (!kind.equals("INSTANCE"))
+                keepable = false;
+            else if (!showGuts)
+                keepable = true; // just a type name, or an immutable wrapper
+            else {
+                // every field we show must be declared in a watched class
+                boolean watched = true;
+                for (Field f : fields)
+                    if (!f.isStatic() && (showAllFields || !f.isSynthetic())
+                        && !watchedTypes.contains(f.declaringType()))
+                        watched = false;
+                keepable = watched;
+            }
+        }
+
+        private List<Field> staticFields = null;
+
+        // in the order of visibleFields
+        List<Field> staticFields(ReferenceType rt) {
+            if (staticFields == null) {
+                staticFields = new ArrayList<>();
+                for (Field f : rt.visibleFields())
+                    if (f.isStatic())
+                        staticFields.add(f);
+            }
+            return staticFields;
+        }
+
+        private List<Field> detailMessageFields = null;
+
+        // for exceptions, which may have more than one
+        List<Field> detailMessageFields(ReferenceType rt) {
+            if (detailMessageFields == null) {
+                detailMessageFields = new ArrayList<>();
+                for (Field f : rt.allFields())
+                    if (f.name().equals("detailMessage"))
+                        detailMessageFields.add(f);
+            }
+            return detailMessageFields;
+        }
+
+        Field field(ReferenceType rt, String fieldName) {
+            if (!byName.containsKey(fieldName))
+                byName.put(fieldName, rt.fieldByName(fieldName));
+            return byName.get(fieldName);
+        }
+    }
+
+    private Map<ReferenceType, TypeInfo> typeInfos = new HashMap<>();
+
+    private TypeInfo typeInfo(ReferenceType rt) {
+        TypeInfo result = typeInfos.get(rt);
+        if (result == null) {
+            result = new TypeInfo(rt);
+            typeInfos.put(rt, result);
+        }
+        return result;
+    }
+
+    // shorthand for a field looked up through the type cache
+    private Field field(ReferenceType rt, String fieldName) {
+        return typeInfo(rt).field(rt, fieldName);
+    }
+
+    private String displayName(ReferenceType rt) {
+        String fullName = rt.name();
+        if (fullName.indexOf("$") > 0) {
+            // inner, local, anonymous or lambda class
+            if (fullName.contains("$$Lambda")) {
+                fullName = "&lambda;" + fullName.substring(fullName.indexOf("$$Lambda")+9); // skip $$lambda$
+                try {
+                    String interf = ((ClassType)rt).interfaces().get(0).name();
+                    if (interf.startsWith("java.util.function."))
+                        interf = interf.substring(19);
+                    
+                    fullName += " ["+interf+"]";
+                }
+                catch (Exception e) {}
+            }
+            // more cases here?
+            else {
+                fullName=fullName.substring(1+fullName.indexOf('$'));
+                if (fullName.matches("[0-9]+"))
+                    fullName = "anonymous class " + fullName;
+                else if (fullName.substring(0, 1).matches("[0-9]+"))
+                    fullName = "local class " + fullName.substring(1);
+            }
+        }
+        return fullName;
+    }
+
     private JsonValue convertObject(ObjectReference obj, boolean fullVersion) {
-        if (showStringsAsValues && obj.referenceType().name().startsWith("java.lang.")
-            && wrapperTypes.contains(obj.referenceType().name().substring(10))) {
-            return convertValue(obj.getValue(obj.referenceType().fieldByName("value")));
+        TypeInfo info = obj instanceof ArrayReference ? null : typeInfo(obj.referenceType());
+        if (showStringsAsValues && info != null && info.wrapper) {
+            return convertValue(obj.getValue(field(obj.referenceType(), "value")));
         }
 
         JsonArrayBuilder result = Json.createArrayBuilder();
@@ -479,39 +787,8 @@ public class JDI2JSON {
 	// in the heap
 
         else if (obj instanceof ArrayReference) {
-            ArrayReference ao = (ArrayReference)obj;
-            int L = ao.length();
-            result.add("LIST");
             heap_done.add(obj.uniqueID());
-
-            class Help {
-                // is it a zero integer?
-                boolean isz(Value v) {
-                    return v instanceof IntegerValue && ((IntegerValue)v).intValue() == 0;
-                }
-            }
-            Help help = new Help();
-
-
-            for (int i=0; i<L; i++) {
-                // hack for markov
-                if (help.isz(ao.getValue(i))) {
-                    // j is the next nonzero after i
-                    int j=i+1;
-                    while (j<L && help.isz(ao.getValue(j))) 
-                        j++;
-                    if (j-i >= 4) {
-                        result.add(convertValue(ao.getValue(i)));
-                        result.add(Json.createArrayBuilder().add("ELIDE").add(j-i-2));
-                        result.add(convertValue(ao.getValue(j-1)));
-                    }
-                    else for (int k=i; k<j; k++) 
-                        result.add(convertValue(ao.getValue(k)));
-                    i = j-1; // don't redo them all
-                }
-                else result.add(convertValue(ao.getValue(i)));
-            }
-            return result.build();
+            return convertArray(arrayValues((ArrayReference)obj), null);
 	}
         else if (obj instanceof StringReference) {
             return Json.createArrayBuilder()
@@ -523,18 +800,18 @@ public class JDI2JSON {
         // do we need special cases for ClassObjectReference, ThreadReference,.... ?
         // stack and queue handling code by Will Gwozdz
 	else {
-	    if (obj.referenceType().name().equals("Queue")) {
+	    if (info.kind.equals("QUEUE") || info.kind.equals("STACK")) {
 		heap_done.add(obj.uniqueID());
 		ReferenceType rt = obj.referenceType();
-		Field length = rt.fieldByName("N");
+		Field length = field(rt, "N");
 		int queueLength = ((IntegerValue)obj.getValue(length)).value();
-		result.add("QUEUE");
+		result.add(info.kind);
 		if (queueLength > 0) {
-		    Field first = rt.fieldByName("first");
+		    Field first = field(rt, "first");
 		    ObjectReference thisNode = (ObjectReference)obj.getValue(first);
 		    ReferenceType nodeRT = thisNode.referenceType();
-		    Field val = nodeRT.fieldByName("item");
-		    Field next = nodeRT.fieldByName("next");
+		    Field val = field(nodeRT, "item");
+		    Field next = field(nodeRT, "next");
 		    for (int i = 0; i < queueLength; i++) {
 			Value v = thisNode.getValue(val);
 			result.add(convertValue(v));
@@ -544,33 +821,12 @@ public class JDI2JSON {
 		return result.build();
 	    }
 
-	    if (obj.referenceType().name().equals("Stack")) {
-                heap_done.add(obj.uniqueID());
-                ReferenceType rt = obj.referenceType();
-                Field length = rt.fieldByName("N");
-                int queueLength = ((IntegerValue)obj.getValue(length)).value();
-                result.add("STACK");
-                if (queueLength > 0) {
-                    Field first = rt.fieldByName("first");
-                    ObjectReference thisNode = (ObjectReference)obj.getValue(first);
-                    ReferenceType nodeRT = thisNode.referenceType();
-                    Field val = nodeRT.fieldByName("item");
-                    Field next = nodeRT.fieldByName("next");
-                    for (int i = 0; i < queueLength; i++) {
-                        Value v = thisNode.getValue(val);
-                        result.add(convertValue(v));
-                        thisNode = (ObjectReference) thisNode.getValue(next);
-                    }
-                }
-                return result.build();
-            }
-
             // st handling code by Will Gwozdz
-	    if (obj.referenceType().name().equals("ST")) {
+	    if (info.kind.equals("DICT")) {
 		heap_done.add(obj.uniqueID());
 		ReferenceType rt = obj.referenceType();
 		result.add("DICT");
-		Field first = rt.fieldByName("first");
+		Field first = field(rt, "first");
 		ObjectReference firstNode = (ObjectReference)obj.getValue(first);
 
 		class stHandler {
@@ -578,10 +834,10 @@ public class JDI2JSON {
 			if (n == null)
 			    return;
 			ReferenceType nt = n.referenceType();
-			Field left = nt.fieldByName("left");
-			Field right = nt.fieldByName("right");
-			Field key = nt.fieldByName("key");
-			Field value = nt.fieldByName("value");
+			Field left = field(nt, "left");
+			Field right = field(nt, "right");
+			Field key = field(nt, "key");
+			Field value = field(nt, "value");
                         //System.out.println(n.uniqueID());
 			loadResultFromSymbolTree((ObjectReference)n.getValue(left), result);
 			if (n.getValue(value) != null) {
@@ -599,50 +855,13 @@ public class JDI2JSON {
 	    // now deal with Objects. 
 	    heap_done.add(obj.uniqueID());
             result.add("INSTANCE");
-            if (obj.referenceType().name().startsWith("java.lang.")
-                && wrapperTypes.contains(obj.referenceType().name().substring(10))) {
-                result.add(obj.referenceType().name().substring(10));
+            result.add(info.displayName);
+            if (info.wrapper) {
                 result.add(jsonArray("___NO_LABEL!___",//jsonArray("NO-LABEL"), // don't show a label or label cell for wrapper instance field
-                                     convertValue(obj.getValue(obj.referenceType().fieldByName("value")))));
+                                     convertValue(obj.getValue(field(obj.referenceType(), "value")))));
             }
-            else {
-                String fullName = obj.referenceType().name();
-                if (fullName.indexOf("$") > 0) {
-                    // inner, local, anonymous or lambda class
-                    if (fullName.contains("$$Lambda")) {
-                        fullName = "&lambda;" + fullName.substring(fullName.indexOf("$$Lambda")+9); // skip $$lambda$
-                        try {
-                            String interf = ((ClassType)obj.referenceType()).interfaces().get(0).name();
-                            if (interf.startsWith("java.util.function."))
-                                interf = interf.substring(19);
-                            
-                            fullName += " ["+interf+"]";
-                        }
-                        catch (Exception e) {}
-                    }
-                    // more cases here?
-                    else {
-                        fullName=fullName.substring(1+fullName.indexOf('$'));
-                        if (fullName.matches("[0-9]+"))
-                            fullName = "anonymous class " + fullName;
-                        else if (fullName.substring(0, 1).matches("[0-9]+"))
-                            fullName = "local class " + fullName.substring(1);
-                    }
-                }
-                result.add(fullName);
-            }
-            if (showGuts(obj.referenceType())) {
-                // fields: -inherited -hidden +synthetic
-                // visibleFields: +inherited -hidden +synthetic
-                // allFields: +inherited +hidden +repeated_synthetic
-                for (Map.Entry<Field,Value> me :  
-                          obj.getValues
-                         (
-                          showAllFields ? 
-                          obj.referenceType().allFields() :
-                          obj.referenceType().visibleFields() )
-                         .entrySet()
-                     ) {
+            else if (info.showGuts) {
+                for (Map.Entry<Field,Value> me : obj.getValues(info.fields).entrySet()) {
                     if (!me.getKey().isStatic()
                         && (showAllFields || !me.getKey().isSynthetic())
                         )
@@ -656,9 +875,8 @@ public class JDI2JSON {
                                    .add(convertValue(me.getValue())));
                 }
             }
-            else if (obj.referenceType().name().equals("Stopwatch")) {
-                ReferenceType rt = obj.referenceType();
-                Field f = rt.fieldByName("startString");
+            else if (info.kind.equals("STOPWATCH")) {
+                Field f = field(obj.referenceType(), "startString");
                 result.add(Json.createArrayBuilder().add("started at").add(
                                                                            Json.createArrayBuilder().add("NUMBER-LITERAL").add(
                                                                                                                                convertValue(obj.getValue(f)))));
@@ -667,9 +885,87 @@ public class JDI2JSON {
 	}
     }
 
-    private JsonArray convertVoid = jsonArray("VOID");
+    // at most this many elements are fetched per JDWP command
+    static final int ARRAY_CHUNK = 4096;
+
+    // all elements of the array, in a few round trips instead of one each
+    private List<Value> arrayValues(ArrayReference ao) {
+        int L = ao.length();
+        if (L == 0)
+            return new ArrayList<>();
+        if (L <= ARRAY_CHUNK)
+            return ao.getValues();
+        List<Value> result = new ArrayList<>(L);
+        for (int i=0; i<L; i+=ARRAY_CHUNK)
+            result.addAll(ao.getValues(i, Math.min(ARRAY_CHUNK, L-i)));
+        return result;
+    }
+
+    private boolean isWindowed(List<Value> values) {
+        return arrayWindow > 0 && values.size() > 2 * arrayWindow + 1;
+    }
+
+    // previous: this array's values at the last step, or null
+    private JsonValue convertArray(List<Value> values, List<Value> previous) {
+        JsonArrayBuilder result = Json.createArrayBuilder();
+        int L = values.size();
+        result.add("LIST");
+
+        if (isWindowed(values)) {
+            boolean[] show = new boolean[L];
+            for (int i=0; i<arrayWindow; i++)
+                show[i] = show[L-1-i] = true;
+            if (previous != null && previous.size() == L)
+                for (int i=arrayWindow; i<L-arrayWindow; i++)
+                    if (!Objects.equals(values.get(i), previous.get(i)))
+                        show[i] = true;
+            for (int i=0; i<L; i++) {
+                if (show[i])
+                    result.add(convertValue(values.get(i)));
+                else {
+                    int j=i+1;
+                    while (!show[j]) // the last element is always shown
+                        j++;
+                    result.add(Json.createArrayBuilder().add("WINDOW").add(i).add(j-i));
+                    i = j-1;
+                }
+            }
+            return result.build();
+        }
+
+        /* run-length encoding: a run of 4 or more equal primitives, nulls
+           or references to the same object becomes
+               v, ["ELIDE", n, v], v
+           where the middle stands for n more copies of v. Runs of int
+           zeros keep the older ["ELIDE", n], without the value, which
+           is what the markov hack this started as wrote. */
+        for (int i=0; i<L; i++) {
+            // j is the end of the run of elements equal to this one
+            int j=i+1;
+            while (j<L && Objects.equals(values.get(j), values.get(i))) 
+                j++;
+            if (j-i >= 4) {
+                JsonValue v = convertValue(values.get(i));
+                JsonArrayBuilder elide = Json.createArrayBuilder().add("ELIDE").add(j-i-2);
+                if (!isIntZero(values.get(i)))
+                    elide.add(v);
+                result.add(v);
+                result.add(elide);
+                result.add(v);
+                i = j-1; // don't redo them all
+            }
+            else result.add(convertValue(values.get(i)));
+        }
+        return result.build();
+    }
+
+    private static boolean isIntZero(Value v) {
+        return v instanceof IntegerValue && ((IntegerValue)v).intValue() == 0;
+    }
+
+    private static final JsonArray convertVoid = jsonArray("VOID");
     
-    private JsonArray jsonArray(Object... args) {
+    private static JsonArray jsonArray(Object... args) {
 	JsonArrayBuilder result = Json.createArrayBuilder();
         for (Object o : args) {
             if (o instanceof JsonValue)
@@ -682,6 +978,22 @@ public class JDI2JSON {
     } 
 
     private JsonValue convertValue(Value v) {
+        JsonValue primitive = convertPrimitive(v);
+        if (primitive != null)
+            return primitive;
+        else if (showStringsAsValues && v instanceof StringReference)
+            return jsonString(((StringReference)v).value());
+        else {
+	    ObjectReference obj = (ObjectReference)v;
+            heap.put(obj.uniqueID(), obj);
+            if (children != null)
+                children.add(obj);
+            return convertObject(obj, false);
+        }
+    }
+
+    // values that don't live in the heap; returns null for objects
+    static JsonValue convertPrimitive(Value v) {
         if (v instanceof BooleanValue) {
             if (((BooleanValue)v).value()==true) 
                 return JsonValue.TRUE;
@@ -700,25 +1012,22 @@ public class JDI2JSON {
         else if (v instanceof CharValue) return jsonArray("CHAR-LITERAL", jsonString(((CharValue)v).value()+""));
         else if (v instanceof VoidValue) return convertVoid;
         else if (!(v instanceof ObjectReference)) return JsonValue.NULL; //not a hack
-        else if (showStringsAsValues && v instanceof StringReference)
-            return jsonString(((StringReference)v).value());
-        else {
-	    ObjectReference obj = (ObjectReference)v;
-            heap.put(obj.uniqueID(), obj);
-            return convertObject(obj, false);
-        }
+        else return null;
     }
 
     static JsonObject compileErrorOutput(String usercode, String errmsg, long row, long col) {
 	return output(usercode,
-	    Json.createArrayBuilder().add
-	    (Json.createObjectBuilder()
-	     .add("line", ""+row)
-	     .add("event", "uncaught_exception")
-	     .add("offset", ""+col)
-	     .add("exception_msg", errmsg))
-                      .build()
-                      );
+	    Json.createArrayBuilder().add(errorPoint(errmsg, row, col)).build());
+    }
+
+    // the execution point that reports a compile or internal error
+    static JsonObject errorPoint(String errmsg, long row, long col) {
+        return Json.createObjectBuilder()
+            .add("line", ""+row)
+            .add("event", "uncaught_exception")
+            .add("offset", ""+col)
+            .add("exception_msg", errmsg)
+            .build();
     }
 
     static String fakify(String realcode) {
@@ -734,11 +1043,37 @@ public class JDI2JSON {
     }
 
     static JsonObject output(String usercode, JsonArray trace) {
+        return output(usercode, trace, null);
+    }
+
+    // pages: lets a daemon client fetch the elided parts of windowed arrays
+    static JsonObject output(String usercode, JsonArray trace, ArrayPages pages) {
         JsonObjectBuilder result = Json.createObjectBuilder();
         result
             .add("code", fakify(usercode))
             .add("stdin", InMemory.stdin) 
             .add("trace", trace);
+        if (pages != null) result.add("array_pages", pages.id);
+        if (userlogged != null) result.add("userlog", userlogged.toString());
+        return result.build();
+    }
+
+    /* visualizer_args OUTPUT_FORMAT "ndjson" prints the same things
+       one line at a time: this header, each execution point as soon
+       as it is made, then a trailer. The trailer's status is "done",
+       "limit" (step or stack limit), "timeout" or "error". */
+    static JsonObject outputHeader(String usercode, ArrayPages pages) {
+        JsonObjectBuilder result = Json.createObjectBuilder();
+        result
+            .add("code", fakify(usercode))
+            .add("stdin", InMemory.stdin);
+        if (pages != null) result.add("array_pages", pages.id);
+        return result.build();
+    }
+
+    static JsonObject outputTrailer(String status) {
+        JsonObjectBuilder result = Json.createObjectBuilder();
+        result.add("status", status);
         if (userlogged != null) result.add("userlog", userlogged.toString());
         return result.build();
     }
@@ -759,13 +1094,12 @@ public class JDI2JSON {
 
             // so instead we just look for the longest detailMessage
             String detail = "";
-            for (Field ff: excType.allFields())
-                if (ff.name().equals("detailMessage")) {
-                    StringReference sr = (StringReference) exc.getValue(ff);
-                    String thisMsg = sr == null ? null : sr.value();
-                    if (thisMsg != null && thisMsg.length() > detail.length())
-                        detail = thisMsg;
-                }
+            for (Field ff: typeInfo(excType).detailMessageFields(excType)) {
+                StringReference sr = (StringReference) exc.getValue(ff);
+                String thisMsg = sr == null ? null : sr.value();
+                if (thisMsg != null && thisMsg.length() > detail.length())
+                    detail = thisMsg;
+            }
 
             if (detail.equals(""))
                 return excType.name(); // NullPointerException has no detail msg
@@ -787,39 +1121,15 @@ public class JDI2JSON {
     /* JSON utility methods */
     
     static JsonValue jsonInt(long l) {
-        return Json.createArrayBuilder().add(l).build().getJsonNumber(0);
+        return LightJson.number(l);
     }
 
     static JsonValue jsonReal(double d) {
-        return Json.createArrayBuilder().add(d).build().getJsonNumber(0);
+        return LightJson.number(d);
     }
 
     static JsonValue jsonString(String S) {
-        return Json.createArrayBuilder().add(S).build().getJsonString(0);
-    }
-    
-    static JsonObject jsonModifiedObject(JsonObject obj, String S, JsonValue v) {
-        JsonObjectBuilder result = Json.createObjectBuilder();
-        result.add(S, v);
-        for (Map.Entry<String, JsonValue> me : obj.entrySet()) {
-            if (!S.equals(me.getKey()))
-                result.add(me.getKey(), me.getValue());
-        }
-        return result.build();
-    }
-
-    // add at specified position, or end if -1
-    static JsonArray jsonModifiedArray(JsonArray arr, int tgt, JsonValue v) {
-        JsonArrayBuilder result = Json.createArrayBuilder();
-        int i = 0;
-        for (JsonValue w : arr) {
-            if (i == tgt) result.add(v);
-            else result.add(w);
-            i++;
-        }
-	if (tgt == -1)
-	    result.add(v);
-        return result.build();
+        return LightJson.string(S);
     }
 
 }
@@ -0,0 +1,163 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import com.sun.jdi.*;
+import java.io.*;
+import java.util.*;
+import javax.json.*;
+
+/***
+ Counts and times the JDWP commands sent to the debuggee during one
+ request (visualizer_args JDWP_PROFILE: true), by command type, such
+ as ThreadReference.Frames or ObjectReference.GetValues. Only real
+ round trips are counted; answers JDI had cached cost nothing. The
+ time of InvokeMethod includes running the method in the debuggee,
+ which for VMCommander's call is the whole program.
+
+ This uses the JDI's own packet tracing (setDebugTraceMode), which
+ prints a line to System.err when each command is sent and when its
+ reply is read. We replace System.err to catch those lines and pass
+ everything else through. The tracing itself slows JDI down a bit,
+ so the times are a little high, but their proportions are right.
+***/
+
+public class JDWPProfile {
+
+    private static PrintStream realErr = null;
+    private static JDWPProfile current = null;
+
+    // command id -> when it was sent, and what it was
+    private final Map<Integer, Long> sentAt = new HashMap<>();
+    private final Map<Integer, String> sentCommand = new HashMap<>();
+
+    // command -> {count, nanos}
+    private final Map<String, long[]> totals = new HashMap<>();
+
+    private int steps = 0, thisStep = 0, maxStep = 0;
+
+    /* Profiles the commands sent to vm from now on; any profile
+       started before stops counting. */
+    static synchronized JDWPProfile start(VirtualMachine vm) {
+        if (realErr == null) {
+            realErr = System.err;
+            System.setErr(new Interceptor(realErr));
+        }
+        current = new JDWPProfile();
+        vm.setDebugTraceMode(VirtualMachine.TRACE_SENDS | VirtualMachine.TRACE_RECEIVES);
+        return current;
+    }
+
+    // the JDI trace goes through println(String), one line per call
+    private static class Interceptor extends PrintStream {
+        Interceptor(PrintStream err) {
+            super(err, true);
+        }
+
+        @Override
+        public void println(String x) {
+            if (x != null && x.startsWith("[JDI: ")) {
+                JDWPProfile p;
+                synchronized (JDWPProfile.class) {
+                    p = current;
+                }
+                if (p != null)
+                    p.traced(x, System.nanoTime());
+            }
+            else
+                super.println(x);
+        }
+    }
+
+    // e.g. "[JDI: Sending Command(id=12) JDWP.ThreadReference.Frames]"
+    private synchronized void traced(String line, long now) {
+        boolean sending = line.startsWith("[JDI: Sending Command(id=");
+        if (!sending && !line.startsWith("[JDI: Receiving Command(id="))
+            return; // the arguments of a command, or of a reply
+        int idStart = line.indexOf('=') + 1;
+        int idEnd = line.indexOf(')', idStart);
+        int commandStart = line.indexOf("JDWP.", idEnd);
+        if (idEnd < 0 || commandStart < 0)
+            return;
+        int commandEnd = commandStart;
+        while (commandEnd < line.length() && ",]".indexOf(line.charAt(commandEnd)) < 0)
+            commandEnd++;
+        int id;
+        try {
+            id = Integer.parseInt(line.substring(idStart, idEnd));
+        }
+        catch (NumberFormatException e) {
+            return;
+        }
+
+        String command = line.substring(commandStart + "JDWP.".length(), commandEnd);
+
+        if (sending) {
+            sentAt.put(id, now);
+            sentCommand.put(id, command);
+            long[] total = totals.get(command);
+            if (total == null)
+                totals.put(command, total = new long[2]);
+            total[0]++;
+            thisStep++;
+            return;
+        }
+        // events from the debuggee are numbered separately, and
+        // error replies aren't traced, so only time exact matches
+        if (!command.equals(sentCommand.get(id)))
+            return;
+        sentCommand.remove(id);
+        totals.get(command)[1] += now - sentAt.remove(id);
+    }
+
+    // called after each execution point of the trace
+    synchronized void step() {
+        steps++;
+        maxStep = Math.max(maxStep, thisStep);
+        thisStep = 0;
+    }
+
+    // commands by decreasing total time
+    synchronized JsonObject toJson() {
+        List<Map.Entry<String, long[]>> byTime = new ArrayList<>(totals.entrySet());
+        Collections.sort(byTime, new Comparator<Map.Entry<String, long[]>>() {
+                public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+                    return Long.compare(b.getValue()[1], a.getValue()[1]);
+                }
+            });
+        long count = 0, nanos = 0;
+        JsonObjectBuilder commands = Json.createObjectBuilder();
+        for (Map.Entry<String, long[]> me : byTime) {
+            long[] total = me.getValue();
+            count += total[0];
+            nanos += total[1];
+            JsonObjectBuilder command = Json.createObjectBuilder()
+                .add("count", total[0])
+                .add("ms", millis(total[1]));
+            if (steps > 0)
+                command.add("per_step", Math.round(100.0 * total[0] / steps) / 100.0);
+            commands.add(me.getKey(), command);
+        }
+        return Json.createObjectBuilder()
+            .add("round_trips", count)
+            .add("ms", millis(nanos))
+            .add("max_per_step", Math.max(maxStep, thisStep))
+            .add("commands", commands)
+            .build();
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+}
@@ -52,14 +52,33 @@ public class JSONTracingThread extends Thread {
 
     static int MAX_STACK_SIZE = 16;
 
+    // restore the defaults above, since daemon mode reuses this class
+    static void resetLimits() {
+        MAX_STEPS = 256;
+        MAX_WALLTIME_SECONDS = 5;
+        MAX_STACK_SIZE = 16;
+    }
+
+    private boolean printedOutput = false;
+
+    // true once we have called vm.exit, so the VM can't be recycled
+    private boolean exitedVM = false;
+
     private String usercode;
 
     private InMemory im;
 
     private VMCommander vmc;
     
+    // the whole trace, unless streaming (visualizer_args OUTPUT_FORMAT "ndjson")
     private JsonArrayBuilder output = Json.createArrayBuilder();
 
+    // for the ndjson trailer: "done", "limit", "timeout" or "error"
+    private String status = "done";
+
+    // null unless visualizer_args DELTA_KEYFRAME is set
+    private TraceDelta delta = null;
+
     JSONTracingThread(InMemory im) {
         super("event-handler");
         this.vm = im.vm;
@@ -70,10 +89,41 @@ public class JSONTracingThread extends Thread {
                                 vm.process().getInputStream(),
                                 vm.process().getErrorStream(),
                                 im.optionsObject);
+        jdi2json.arrayWindow = im.arrayWindow;
+        if (im.deltaKeyframe > 0)
+            delta = new TraceDelta(im.deltaKeyframe);
+        JsonValue stepping = im.optionsObject.get("stepping");
+        if (stepping instanceof JsonString && ((JsonString)stepping).getString().equals("line")
+            && vm.canGetBytecodes())
+            stepSize = StepRequest.STEP_LINE;
+        if (im.daemon && im.arrayWindow > 0)
+            jdi2json.pages = ArrayPages.create();
         setEventRequests();
+
+        // a recycled VM won't hit NoopMain.main again, and StdIn
+        // may already have been prepared during an earlier request
+        if (im.parkedThread != null) {
+            theThread = im.parkedThread;
+            for (ReferenceType rt : vm.classesByName("StdIn"))
+                jdi2json.stdinRT = rt;
+        }
     }
     
     void setEventRequests() {
+        if (im.instrument) {
+            // the debuggee traces itself (see shoelace.instrument.Tracer),
+            // so we only need NoopMain, to start VMCommander from
+            ThreadDeathRequest tdr = mgr.createThreadDeathRequest();
+            tdr.setSuspendPolicy(EventRequest.SUSPEND_ALL);
+            tdr.enable();
+
+            ClassPrepareRequest cpr = mgr.createClassPrepareRequest();
+            cpr.addClassFilter("traceprinter.shoelace.NoopMain");
+            cpr.setSuspendPolicy(EventRequest.SUSPEND_ALL);
+            cpr.enable();
+            return;
+        }
+
         ExceptionRequest excReq = mgr.createExceptionRequest(null, true, true);
         excReq.setSuspendPolicy(EventRequest.SUSPEND_ALL);
         for (String clob : no_breakpoint_requests)
@@ -105,54 +155,93 @@ public class JSONTracingThread extends Thread {
     
     @Override
     public void run() {
-        StepRequest request = null;
+        long tracing = System.nanoTime();
         final EventQueue queue = vm.eventQueue();
+        if (im.ndjson)
+            printLine(JDI2JSON.outputHeader(usercode, jdi2json.pages));
+        if (im.parkedThread != null) {
+            steps++;
+            vmc = new VMCommander(im, theThread);
+            vmc.instrumentSettings = instrumentSettings();
+            vmc.start();
+        }
         while (connected) {
             try {
-                final EventSet eventSet = queue.remove();
+                final EventSet eventSet;
+                if (im.reuseVM) {
+                    // the VM won't die at the end, so stop once main has
+                    // returned and all of its events have been handled
+                    eventSet = queue.remove(50);
+                    if (eventSet == null) {
+                        if (vmc != null && !vmc.isAlive())
+                            break;
+                        continue;
+                    }
+                }
+                else eventSet = queue.remove();
+                Location lineEventLocation = null;
                 for (Event ev : new Iterable<Event>(){public Iterator<Event> iterator(){return eventSet.eventIterator();}}) {
-
+                    // once a limit has ended the trace, the rest of the set
+                    // (say a step where a method was entered) can't be read;
+                    // only the VM's death and disconnection are still news
+                    if (exitedVM && !(ev instanceof VMDeathEvent || ev instanceof VMDisconnectEvent))
+                        continue;
+                    JDI2JSON.timings.count("events");
 
                     //System.out.println("in run: " + steps+" "+ev+" "+(System.currentTimeMillis()-startTime));
 
                     //        System.out.println(currentTimeMillis());
-                    if (System.currentTimeMillis() > MAX_WALLTIME_SECONDS * 1000 + InMemory.startTime) {
-                        output.add(Json.createObjectBuilder()
-                                   .add("exception_msg", "<exceeded max visualizer time limit>")
-                                   .add("event", "instruction_limit_reached"));
+                    if (!printedOutput && System.currentTimeMillis() > MAX_WALLTIME_SECONDS * 1000 + im.startTime) {
+                        emit(Json.createObjectBuilder()
+                             .add("exception_msg", "<exceeded max visualizer time limit>")
+                             .add("event", "instruction_limit_reached")
+                             .build());
                         
-                        try { 
-                            PrintStream out = new PrintStream(System.out, true, "UTF-8");
-                            String outputString = JDI2JSON.output(usercode, output.build()).toString();
-                            out.print(outputString);
-                        } catch (UnsupportedEncodingException e) {
-                            System.out.print("UEE");
-                            }
-                        System.exit(0);
-                        vm.exit(0); // might take a long time
+                        if (im.ndjson)
+                            printOutput(JDI2JSON.outputTrailer("timeout"));
+                        else
+                            printOutput(JDI2JSON.output(usercode, output.build(), jdi2json.pages));
+                        if (!im.daemon)
+                            System.exit(0);
+                        exitVM(); // might take a long time
                     }
 
 
-                    handleEvent(ev);
-                    if (request != null && request.isEnabled()) {
-                        request.disable();
+                    // only tells us which objects to re-read at the next step
+                    if (ev instanceof ModificationWatchpointEvent) {
+                        jdi2json.fieldModified(((ModificationWatchpointEvent)ev).object());
+                        lastLineEvent = null;
+                        continue;
                     }
-                    if (request != null) {
-                        mgr.deleteEventRequest(request);
-                        request = null;
+
+                    // single steps wouldn't have got there either; see addBreakpoints
+                    if (ev instanceof BreakpointEvent && ev.request().getProperty(MID_LINE) != null
+                        && (stepper == null || !stepper.isEnabled()))
+                        continue;
+
+                    // a step and a breakpoint at the same place show the same thing
+                    if (ev instanceof StepEvent || ev instanceof BreakpointEvent) {
+                        Location loc = ((LocatableEvent)ev).location();
+                        if (loc.equals(lineEventLocation))
+                            continue;
+                        lineEventLocation = loc;
                     }
-                    if (ev instanceof LocatableEvent && 
-                        jdi2json.reportEventsAtLocation(((LocatableEvent)ev).location())
-                        || 
-                        (ev.toString().contains("NoopMain")))
-                        {
-                        request = mgr.
-                            createStepRequest(((LocatableEvent)ev).thread(),
-                                              StepRequest.STEP_MIN,
-                                              StepRequest.STEP_INTO);
-                        request.addCountFilter(1);  // next step only
-                        request.enable();
+
+                    // JDWP doesn't report a breakpoint added where the thread
+                    // already is, so the first entry of a method is also its
+                    // first line event, just as later entries will be
+                    boolean firstEntry = ev instanceof MethodEntryEvent
+                        && addBreakpoints(((MethodEntryEvent)ev).method());
+
+                    handleEvent(ev, false);
+                    // (unless that event hit a limit and ended the trace)
+                    if (firstEntry && !exitedVM) {
+                        lineEventLocation = ((LocatableEvent)ev).location();
+                        handleEvent(ev, true);
                     }
+                    setStepping(ev instanceof LocatableEvent && 
+                                (jdi2json.reportEventsAtLocation(((LocatableEvent)ev).location())
+                                 || ev.toString().contains("NoopMain")));
                 }
                 eventSet.resume();
             } catch (InterruptedException exc) {
@@ -163,42 +252,187 @@ public class JSONTracingThread extends Thread {
                 break;
             }
         }
-        String outputString = null;
+        JDI2JSON.timings.add("trace", tracing);
+        if (printedOutput) // already done, by the time limit
+            return;
+
+        JsonObject error = null; // replaces the whole trace
+        boolean cacheable = false; // internal errors may not happen next time
         try {
             if (vmc == null) {
-                outputString = JDI2JSON.compileErrorOutput(usercode, "Internal error: there was an error starting the debuggee VM.", 0, 0).toString();
+                error = JDI2JSON.errorPoint("Internal error: there was an error starting the debuggee VM.", 0, 0);
             }
             else {
                 vmc.join();
                 if (vmc.success == null) {
-                    outputString = JDI2JSON.compileErrorOutput(usercode, "Success is null?", 0, 0).toString();
+                    error = JDI2JSON.errorPoint("Success is null?", 0, 0);
                 }
                 else if (vmc.success == false) {
-                    outputString = JDI2JSON.compileErrorOutput(usercode, vmc.errorMessage, 1, 1).toString();
+                    error = JDI2JSON.errorPoint(vmc.errorMessage, 1, 1);
+                    cacheable = true;
                 }
                 else {
-                    outputString = JDI2JSON.output(usercode, output.build()).toString();
+                    cacheable = true;
+                }
+                if (vmc.trace != null) {
+                    for (JsonValue ep : vmc.trace)
+                        emit((JsonObject)ep);
+                    status = vmc.traceStatus;
+                    cacheable &= !status.equals("timeout");
                 }
             }
         }
         catch (Exception e) {
             e.printStackTrace(System.out);
+            error = JDI2JSON.errorPoint("Internal error: " + e, 0, 0);
+        }
+
+        // the steps already streamed can't be taken back, so the
+        // client should show only the error when the status says so
+        if (im.ndjson) {
+            if (error != null) {
+                printLine(error);
+                status = "error";
+            }
+            printOutput(JDI2JSON.outputTrailer(status));
+            return;
         }
 
-        try { 
-            PrintStream out = new PrintStream(System.out, true, "UTF-8");
-            out.print(outputString);
-        } catch (UnsupportedEncodingException e) {
-            System.out.print(outputString);
+        JsonObject result;
+        if (error != null)
+            result = JDI2JSON.output(usercode, Json.createArrayBuilder().add(error).build());
+        else
+            result = JDI2JSON.output(usercode, output.build(), jdi2json.pages);
+
+        // traces cut off by the time limit never get here
+        if (cacheable && im.traceKey != null) {
+            String outputString = result.toString();
+            printOutput(outputString);
+            InMemory.traceCache.put(im.traceKey, outputString);
         }
+        else
+            printOutput(result);
+    }
+
+    private void exitVM() {
+        exitedVM = true;
+        vm.exit(0);
+    }
+
+    // can this VM run another request? (only if main returned normally)
+    boolean canRecycle() {
+        return connected && !exitedVM && vmc != null && !vmc.isAlive() && vmc.success != null
+            && status.equals("done");
+    }
+
+    /* For the instrument engine, what VMCommander passes to
+       shoelace.instrument.Tracer: which classes are the user's, what
+       JDI2JSON would show, and the limits. */
+    private String instrumentSettings() {
+        if (!im.instrument)
+            return null;
+        JsonArrayBuilder user = Json.createArrayBuilder();
+        for (String className : im.bytecode.keySet())
+            if (!JDI2JSON.in_builtin_package(className))
+                user.add(className);
+        JsonArrayBuilder builtin = Json.createArrayBuilder();
+        for (String prefix : JDI2JSON.builtin_packages)
+            builtin.add(prefix);
+        JsonArrayBuilder stdlib = Json.createArrayBuilder();
+        for (String className : JDI2JSON.PU_stdlib)
+            stdlib.add(className);
+        return Json.createObjectBuilder()
+            .add("user", user)
+            .add("builtin", builtin)
+            .add("stdlib", stdlib)
+            .add("showStringsAsValues", jdi2json.showStringsAsValues)
+            .add("steps", steps)
+            .add("maxSteps", MAX_STEPS)
+            .add("maxStackSize", MAX_STACK_SIZE)
+            .add("deadline", im.startTime + (long)(MAX_WALLTIME_SECONDS * 1000))
+            .build().toString();
+    }
+
+    private void printOutput(String outputString) {
+        printedOutput = true;
+        im.out.print(outputString);
+        im.out.flush();
+    }
+
+    // without building the whole string first
+    private void printOutput(JsonObject output) {
+        printedOutput = true;
+        LightJson.write(output, im.out, JDI2JSON.reportedTimings());
+    }
+
+    // one line of an ndjson trace, sent right away
+    private void printLine(JsonObject line) {
+        long writing = System.nanoTime();
+        LightJson.write(line, im.out);
+        im.out.println();
+        im.out.flush();
+        JDI2JSON.timings.add("serialize", writing);
+    }
+
+    // adds an execution point to the trace
+    private void emit(JsonObject ep) {
+        JDI2JSON.timings.count("steps");
+        if (JDI2JSON.timings.jdwp != null)
+            JDI2JSON.timings.jdwp.step();
+        if (delta != null)
+            ep = delta.encode(ep);
+        if (im.ndjson)
+            printLine(ep);
+        else
+            output.add(ep);
     }
 
     ThreadReference theThread = null;
+
+    // where the event just before was, if it was a step or breakpoint
+    // that was converted; see JDI2JSON.unchangedSince
+    private Location lastLineEvent = null;
+
+    // never deleted, only enabled and disabled; see setStepping
+    private StepRequest stepper = null;
+
+    /* STEP_LINE if options.stepping is "line". Single steps stop at
+       every instruction, but all except a few show the same thing
+       as the one before, and are dropped after being converted. Line
+       steps stop only at the next line (or method), so a line gets
+       extra breakpoints where the single steps would have shown
+       something new; see addBreakpoints. */
+    private int stepSize = StepRequest.STEP_MIN;
+
+    /* We single-step through user code, from any event there until
+       the next event outside it (say, the first step into a library
+       method). One StepRequest does this for the whole trace: it
+       stays enabled from one step to the next, so that stepping
+       needs no JDWP commands of its own while in user code.
+
+       It has no class filters: with them, the debuggee would step
+       over library calls and keep going, showing steps in the middle
+       of a line that the trace has never had. */
+    private void setStepping(boolean on) {
+        on &= !im.instrument; // that debuggee traces itself
+        if (on && stepper == null)
+            stepper = mgr.createStepRequest(theThread, stepSize, StepRequest.STEP_INTO);
+        if (stepper != null && stepper.isEnabled() != on)
+            stepper.setEnabled(on);
+    }
         
-    private Thread handleEvent(Event event) {
+    private Thread handleEvent(Event event, boolean lineEvent) {
         //System.out.println(event);
+        Location prevLineEvent = lastLineEvent;
+        lastLineEvent = null;
+
         if (event instanceof ClassPrepareEvent) {
             classPrepareEvent((ClassPrepareEvent)event);
+        } else if (event instanceof ExceptionEvent) {
+            Location katch = ((ExceptionEvent)event).catchLocation();
+            if (stepSize == StepRequest.STEP_LINE && katch != null
+                && breakpointMethods.contains(katch.method()))
+                addBreakpoint(katch, true);
         } else if (event instanceof VMDeathEvent) {
             vmDeathEvent((VMDeathEvent)event);
         } else if (event instanceof VMDisconnectEvent) {
@@ -218,6 +452,11 @@ public class JSONTracingThread extends Thread {
                 if (loc.sourceName().equals("NoopMain.java") && steps == 0) {
                     steps++;
                     vmc = new VMCommander(im, theThread);
+                    vmc.instrumentSettings = instrumentSettings();
+                    // with jdi, stepping on from here keeps the VM
+                    // suspended until VMCommander does; nothing else would
+                    if (im.instrument)
+                        vm.suspend();
                     vmc.start();
                 }
             } catch (AbsentInformationException e) {}
@@ -225,29 +464,44 @@ public class JSONTracingThread extends Thread {
             if (steps < MAX_STEPS && jdi2json.reportEventsAtLocation(loc)
                 || event instanceof ExceptionEvent && ((ExceptionEvent)event).catchLocation()==null) {
 		try {
-                    for (JsonObject ep : jdi2json.convertExecutionPoint(event, loc, theThread)) {
-			output.add(ep);
+                    boolean isLineEvent = event instanceof StepEvent || event instanceof BreakpointEvent;
+                    if (isLineEvent && jdi2json.unchangedSince(prevLineEvent, loc)) {
+                        JDI2JSON.timings.count("unchanged");
+                        lastLineEvent = loc;
+                        return null;
+                    }
+                    long converting = System.nanoTime();
+                    List<JsonObject> eps = jdi2json.convertExecutionPoint(event, lineEvent, loc, theThread);
+                    JDI2JSON.timings.add("convert", converting);
+                    for (JsonObject ep : eps) {
+			emit(ep);
 			steps++;	  
                         int stackSize = ((JsonArray)ep.get("stack_to_render")).size();
 
                         boolean quit = false;
                         if (stackSize >= MAX_STACK_SIZE) {
-                            output.add(Json.createObjectBuilder()
-                                       .add("exception_msg", "<exceeded max visualizer stack size>")
-                                       .add("event", "instruction_limit_reached"));
+                            emit(Json.createObjectBuilder()
+                                 .add("exception_msg", "<exceeded max visualizer stack size>")
+                                 .add("event", "instruction_limit_reached")
+                                 .build());
+                            status = "limit";
                             quit = true;
                         }
 			if (steps == MAX_STEPS) {
-                            output.add(Json.createObjectBuilder()
-                                       .add("exception_msg", "<exceeded max visualizer step limit>")
-                                       .add("event", "instruction_limit_reached"));
+                            emit(Json.createObjectBuilder()
+                                 .add("exception_msg", "<exceeded max visualizer step limit>")
+                                 .add("event", "instruction_limit_reached")
+                                 .build());
+                            status = "limit";
 			    quit = true;
 			}
                         if (quit)
-                            vm.exit(0);
+                            exitVM();
 		    }
+                    if (isLineEvent)
+                        lastLineEvent = loc;
                     if (event instanceof ExceptionEvent && ((ExceptionEvent)event).catchLocation()==null) {
-                        vm.exit(0);
+                        exitVM();
                     }
 		} catch (RuntimeException e) {
 		    System.out.println("Error " + e.toString());
@@ -293,23 +547,85 @@ public class JSONTracingThread extends Thread {
             if (rt.name().equals("StdIn"))
                 jdi2json.stdinRT = rt;
             
-            if (jdi2json.in_builtin_package(rt.name()))
+            if (JDI2JSON.in_builtin_package(rt.name()))
                 return;
         }
 
         jdi2json.staticListable.add(rt);
 
-        //System.out.println(rt.name());
+        // lets JDI2JSON keep converted instances until a field changes;
+        // SUSPEND_NONE, so a write costs one event but no round trip
+        if (vm.canWatchFieldModification()) {
+            for (Field f : rt.fields())
+                if (!f.isStatic()) {
+                    ModificationWatchpointRequest mwr = mgr.createModificationWatchpointRequest(f);
+                    mwr.setSuspendPolicy(EventRequest.SUSPEND_NONE);
+                    mwr.enable();
+                }
+            jdi2json.watchedTypes.add(rt);
+        }
+
+        // its methods get breakpoints when they are first entered;
+        // NoopMain.main is already running, and its breakpoint is
+        // what suspends the whole VM for VMCommander
+        breakpointTypes.add(rt);
+        if (rt.name().equals("traceprinter.shoelace.NoopMain"))
+            for (Method m : rt.methodsByName("main"))
+                addBreakpoints(m);
+    }
+
+    private static final String MID_LINE = "mid-line";
+
+    // classes whose lines have breakpoints, the methods done so far,
+    // and where the breakpoints are
+    private Set<ReferenceType> breakpointTypes = new HashSet<>();
+    private Set<Method> breakpointMethods = new HashSet<>();
+    private Set<Location> breakpoints = new HashSet<>();
+
+    /* Breakpoints let us pick up stepping at the next line after a
+       call into a library. They only matter in methods that are
+       running, so they are added on the first MethodEntryEvent of
+       each method, rather than for every line of a class as soon as
+       it is prepared. They stay for the rest of the trace, since
+       removing and re-adding them for a method called in a loop
+       would cost more than they ever do. Returns true if one was
+       just put where the method starts.
+
+       With line steps, there are also MID_LINE breakpoints wherever
+       a single step in the middle of a line could show something
+       new (see Bytecodes.stops), and at the handler of each caught
+       exception once it is thrown. Like the single steps they stand
+       for, they only count while stepping. */
+    private boolean addBreakpoints(Method m) {
+        if (!breakpointTypes.contains(m.declaringType()) || !breakpointMethods.add(m))
+            return false;
+        boolean atStart = false;
         try {
-            for (Location loc : rt.allLineLocations()) {
-                BreakpointRequest br = mgr.createBreakpointRequest(loc);
-                br.enable();
+            for (Location loc : m.allLineLocations()) {
+                addBreakpoint(loc, false);
+                atStart |= loc.equals(m.location());
             }
+            if (stepSize == StepRequest.STEP_LINE)
+                for (int bci : Bytecodes.stops(m.bytecodes())) {
+                    Location loc = m.locationOfCodeIndex(bci);
+                    if (loc != null)
+                        addBreakpoint(loc, true);
+                }
         }
         catch (AbsentInformationException e) {
-            if (!rt.name().contains("$Lambda$"))
-                System.out.println("AIE!" + rt.name());
+            if (!m.declaringType().name().contains("$Lambda$"))
+                System.out.println("AIE!" + m);
         }
+        return atStart;
+    }
+
+    private void addBreakpoint(Location loc, boolean midLine) {
+        if (!breakpoints.add(loc))
+            return;
+        BreakpointRequest br = mgr.createBreakpointRequest(loc);
+        if (midLine)
+            br.putProperty(MID_LINE, true);
+        br.enable();
     }
 
     public void vmDeathEvent(VMDeathEvent event) {
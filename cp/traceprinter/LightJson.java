@@ -0,0 +1,247 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import java.io.*;
+import java.math.*;
+import java.nio.charset.*;
+import java.util.*;
+import javax.json.*;
+import javax.json.stream.*;
+
+/***
+ Cheap JSON values and output, since javax.json 1.0 has no way to
+ make a lone string or number except by building an array around it.
+ These values equal (and hash like) the ones javax.json makes, so
+ they mix freely in builders and comparisons. Small integers, which
+ are most of the locals and fields we see, are made only once.
+
+ write prints a JSON object straight to a stream with a generator,
+ exactly as toString would, without first building a giant string.
+***/
+
+public class LightJson {
+
+    private static final int SMALL_MIN = -128, SMALL_MAX = 1023;
+
+    private static final Int[] small = new Int[SMALL_MAX - SMALL_MIN + 1];
+    static {
+        for (int i=SMALL_MIN; i<=SMALL_MAX; i++)
+            small[i - SMALL_MIN] = new Int(i);
+    }
+
+    static JsonNumber number(long l) {
+        if (l >= SMALL_MIN && l <= SMALL_MAX)
+            return small[(int)l - SMALL_MIN];
+        return new Int(l);
+    }
+
+    // the same digits as javax.json would print
+    static JsonNumber number(double d) {
+        return new Decimal(BigDecimal.valueOf(d));
+    }
+
+    static JsonString string(String s) {
+        return new Str(s);
+    }
+
+    private static final JsonGeneratorFactory generators = Json.createGeneratorFactory(null);
+
+    // prints o.toString() to out, and flushes
+    static void write(JsonObject o, PrintStream out) {
+        write(o, out, null);
+    }
+
+    /* If timings isn't null, they are added last as "timings", so
+       that they can include the time taken to write the rest. */
+    static void write(JsonObject o, PrintStream out, Timings timings) {
+        long writing = System.nanoTime();
+        // not closed, since that would close out; UTF-8 like the rest of our output
+        JsonGenerator g = generators.createGenerator(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        g.writeStartObject();
+        for (Map.Entry<String, JsonValue> me : o.entrySet())
+            g.write(me.getKey(), me.getValue());
+        if (timings != null) {
+            timings.add("serialize", writing);
+            g.write("timings", timings.toJson());
+        }
+        g.writeEnd();
+        g.flush();
+    }
+
+    private static abstract class Num implements JsonNumber {
+        public ValueType getValueType() {
+            return ValueType.NUMBER;
+        }
+
+        public int intValue() {
+            return bigDecimalValue().intValue();
+        }
+
+        public int intValueExact() {
+            return bigDecimalValue().intValueExact();
+        }
+
+        public long longValue() {
+            return bigDecimalValue().longValue();
+        }
+
+        public long longValueExact() {
+            return bigDecimalValue().longValueExact();
+        }
+
+        public BigInteger bigIntegerValue() {
+            return bigDecimalValue().toBigInteger();
+        }
+
+        public BigInteger bigIntegerValueExact() {
+            return bigDecimalValue().toBigIntegerExact();
+        }
+
+        public double doubleValue() {
+            return bigDecimalValue().doubleValue();
+        }
+
+        public boolean isIntegral() {
+            return bigDecimalValue().scale() == 0;
+        }
+
+        // as javax.json does
+        public int hashCode() {
+            return bigDecimalValue().hashCode();
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof JsonNumber
+                && bigDecimalValue().equals(((JsonNumber)o).bigDecimalValue());
+        }
+
+        public String toString() {
+            return bigDecimalValue().toString();
+        }
+    }
+
+    // a whole number, which doesn't need a BigDecimal unless asked
+    private static final class Int extends Num {
+        private final long value;
+        private int hash;
+        private boolean hashed = false;
+
+        Int(long value) {
+            this.value = value;
+        }
+
+        public BigDecimal bigDecimalValue() {
+            return BigDecimal.valueOf(value);
+        }
+
+        public boolean isIntegral() {
+            return true;
+        }
+
+        public int intValue() {
+            return (int)value;
+        }
+
+        public long longValue() {
+            return value;
+        }
+
+        public double doubleValue() {
+            return value;
+        }
+
+        public int hashCode() {
+            if (!hashed) {
+                hash = super.hashCode();
+                hashed = true;
+            }
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (o instanceof Int)
+                return value == ((Int)o).value;
+            return super.equals(o);
+        }
+
+        public String toString() {
+            return Long.toString(value);
+        }
+    }
+
+    private static final class Decimal extends Num {
+        private final BigDecimal value;
+
+        Decimal(BigDecimal value) {
+            this.value = value;
+        }
+
+        public BigDecimal bigDecimalValue() {
+            return value;
+        }
+    }
+
+    private static final class Str implements JsonString {
+        private final String value;
+
+        Str(String value) {
+            this.value = value;
+        }
+
+        public ValueType getValueType() {
+            return ValueType.STRING;
+        }
+
+        public String getString() {
+            return value;
+        }
+
+        public CharSequence getChars() {
+            return value;
+        }
+
+        public int hashCode() {
+            return value.hashCode();
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof JsonString && value.equals(((JsonString)o).getString());
+        }
+
+        // quoted and escaped, as javax.json does
+        public String toString() {
+            StringBuilder result = new StringBuilder(value.length() + 2);
+            result.append('"');
+            for (int i=0; i<value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                case '"': result.append("\\\""); break;
+                case '\\': result.append("\\\\"); break;
+                case '\b': result.append("\\b"); break;
+                case '\f': result.append("\\f"); break;
+                case '\n': result.append("\\n"); break;
+                case '\r': result.append("\\r"); break;
+                case '\t': result.append("\\t"); break;
+                default:
+                    if (c < 0x20)
+                        result.append(String.format("\\u%04x", (int)c));
+                    else
+                        result.append(c);
+                }
+            }
+            return result.append('"').toString();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import java.util.*;
+import javax.json.*;
+
+/***
+ Where the time of one request went (visualizer_args TIMINGS: true).
+ Phases are timed with System.nanoTime and added up, so a phase that
+ happens more than once (like converting an execution point) reports
+ its total. Timing is always on since it is cheap next to JDWP; the
+ request only decides whether it is printed.
+***/
+
+public class Timings {
+
+    private final long start = System.nanoTime();
+    private final Map<String, Long> nanos = new LinkedHashMap<>();
+    private final Map<String, Long> counts = new LinkedHashMap<>();
+
+    // print these with the trace?
+    boolean report = false;
+
+    // visualizer_args JDWP_PROFILE, printed as part of the timings
+    JDWPProfile jdwp = null;
+
+    // adds the time since a System.nanoTime() reading to a phase
+    synchronized void add(String phase, long since) {
+        long elapsed = System.nanoTime() - since;
+        Long old = nanos.get(phase);
+        nanos.put(phase, old == null ? elapsed : old + elapsed);
+    }
+
+    synchronized void count(String what) {
+        Long old = counts.get(what);
+        counts.put(what, old == null ? 1 : old + 1);
+    }
+
+    // milliseconds per phase (and in total so far), then the counts,
+    // then the JDWP profile if any
+    synchronized JsonObject toJson() {
+        JsonObjectBuilder result = Json.createObjectBuilder();
+        for (Map.Entry<String, Long> me : nanos.entrySet())
+            result.add(me.getKey() + "_ms", millis(me.getValue()));
+        result.add("total_ms", millis(System.nanoTime() - start));
+        for (Map.Entry<String, Long> me : counts.entrySet())
+            result.add(me.getKey(), me.getValue());
+        if (jdwp != null)
+            result.add("jdwp", jdwp.toJson());
+        return result.build();
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+}
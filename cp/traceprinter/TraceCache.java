@@ -0,0 +1,249 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.util.*;
+import java.util.regex.*;
+import javax.json.*;
+
+/***
+ A cache of finished traces, so that gallery examples and repeated
+ demos don't need a debuggee at all. The key is a hash of everything
+ in the request that affects the trace (usercode, options, args,
+ stdin, visualizer_args) plus a version stamp of the traceprinter
+ and stdlib classes, so a redeploy never serves stale traces.
+
+ Like ramtools.BytecodeCache, there is an in-memory LRU bounded by
+ size, and an optional directory on disk consulted on a memory miss.
+
+ Only deterministic programs may be cached; see nondeterminismReason.
+***/
+
+public class TraceCache {
+
+    private final long maxBytes;
+    private final File dir;
+    private long totalBytes = 0;
+
+    private final LinkedHashMap<String, String> memory =
+        new LinkedHashMap<>(16, 0.75f, true); // access order, eldest is LRU
+
+    // maxBytes bounds the in-memory tier; dir may be null for no disk tier
+    public TraceCache(long maxBytes, File dir) {
+        this.maxBytes = maxBytes;
+        this.dir = dir;
+        if (dir != null)
+            dir.mkdirs();
+    }
+
+    // things whose result changes from run to run, regardless of input
+    // (class names may be written out in full, as in java.util.Random)
+    private static final String[][] nondeterministic = {
+        {"Math\\s*\\.\\s*random\\b", "Math.random"},
+        {"\\bnew\\s+(java\\s*\\.\\s*util\\s*\\.\\s*)?Random\\s*\\(\\s*\\)", "unseeded Random"},
+        {"(?<!StdRandom\\.)\\bshuffle\\s*\\(", "shuffle"},
+        {"\\bThreadLocalRandom\\b", "ThreadLocalRandom"},
+        {"\\bSecureRandom\\b", "SecureRandom"},
+        {"\\brandomUUID\\b", "UUID.randomUUID"},
+        {"\\bcurrentTimeMillis\\b", "System.currentTimeMillis"},
+        {"\\bnanoTime\\b", "System.nanoTime"},
+        {"\\bStopwatch\\b", "Stopwatch"},
+        {"\\bnew\\s+(java\\s*\\.\\s*util\\s*\\.\\s*)?Date\\s*\\(\\s*\\)", "Date"},
+        {"Calendar\\b", "Calendar"},
+        {"\\.\\s*now\\s*\\(", "the current time"},
+        {"\\bidentityHashCode\\b", "System.identityHashCode"},
+        {"\\bThread\\b", "threads"},
+        {"\\bnew\\s+In\\s*\\(", "reading files or URLs"},
+        {"\\b(RandomAccess)?File\\w*\\b|\\bPaths?\\b|\\bjava\\s*\\.\\s*nio\\b", "files"},
+        {"\\bURL\\w*\\b|\\bSocket\\b", "the network"},
+        {"\\bgetenv\\b", "the environment"},
+    };
+
+    /* Returns null if this code looks deterministic, else a reason why
+       not. This only scans the source text for the usual suspects
+       above, leaning towards false alarms, which only cost a cache
+       miss; code that hides them (say behind reflection) fools it. */
+    static String nondeterminismReason(String usercode) {
+        for (String[] check : nondeterministic)
+            if (Pattern.compile(check[0]).matcher(usercode).find())
+                return check[1];
+        // StdRandom seeds itself from the clock unless told otherwise
+        if (usercode.contains("StdRandom") && !usercode.contains("setSeed"))
+            return "StdRandom without setSeed";
+        return null;
+    }
+
+    private static String version = null;
+
+    /* A hash of the class files of traceprinter and of the stdlib,
+       computed once. If they can't be read, we hash the time we
+       started instead, which makes the disk tier useless but safe. */
+    static synchronized String version() {
+        if (version != null)
+            return version;
+        MessageDigest md = sha256();
+        try {
+            URL location = InMemory.class.getProtectionDomain().getCodeSource().getLocation();
+            File root = new File(location.toURI());
+            if (root.isDirectory())
+                hashTree(md, new File(root, "traceprinter"));
+            else
+                hashStream(md, new FileInputStream(root));
+            for (String className : JDI2JSON.PU_stdlib) {
+                InputStream in = ClassLoader.getSystemResourceAsStream(className + ".class");
+                if (in != null)
+                    hashStream(md, in);
+            }
+        }
+        catch (Exception e) {
+            update(md, "" + System.nanoTime());
+        }
+        version = hex(md.digest());
+        return version;
+    }
+
+    // in a fixed order, so every debugger VM agrees
+    private static void hashTree(MessageDigest md, File f) throws IOException {
+        if (f.isDirectory()) {
+            File[] children = f.listFiles();
+            Arrays.sort(children);
+            for (File child : children)
+                hashTree(md, child);
+        }
+        else if (f.getName().endsWith(".class")) {
+            update(md, f.getName());
+            hashStream(md, new FileInputStream(f));
+        }
+    }
+
+    private static void hashStream(MessageDigest md, InputStream in) throws IOException {
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                md.update(buffer, 0, n);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    // null parts (e.g. no visualizer_args) hash differently from any string
+    static String key(JsonObject frontend_data) {
+        MessageDigest md = sha256();
+        update(md, version());
+        for (String part : new String[] {"usercode", "options", "args", "stdin", "visualizer_args"})
+            update(md, frontend_data.containsKey(part) ? frontend_data.get(part).toString() : null);
+        return hex(md.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // length-prefixed, so that different splits never collide
+    private static void update(MessageDigest md, String s) {
+        if (s == null) {
+            md.update(new byte[] {-1, -1, -1, -1});
+            return;
+        }
+        byte[] bytes;
+        try {
+            bytes = s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        int n = bytes.length;
+        md.update(new byte[] {(byte)(n >>> 24), (byte)(n >>> 16), (byte)(n >>> 8), (byte)n});
+        md.update(bytes);
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : bytes)
+            result.append(String.format("%02x", b & 0xFF));
+        return result.toString();
+    }
+
+    // returns the trace exactly as it was printed, or null on a miss
+    synchronized String get(String key) {
+        String result = memory.get(key);
+        if (result == null && dir != null) {
+            result = readFromDisk(key);
+            if (result != null)
+                putInMemory(key, result);
+        }
+        return result;
+    }
+
+    synchronized void put(String key, String trace) {
+        putInMemory(key, trace);
+        if (dir != null)
+            writeToDisk(key, trace);
+    }
+
+    private void putInMemory(String key, String trace) {
+        String old = memory.put(key, trace);
+        if (old != null)
+            totalBytes -= 2 * old.length();
+        totalBytes += 2 * trace.length();
+        Iterator<String> it = memory.values().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            totalBytes -= 2 * it.next().length();
+            it.remove();
+        }
+    }
+
+    private String readFromDisk(String key) {
+        File f = new File(dir, key + ".json");
+        if (!f.isFile()) return null;
+        try (Reader in = new InputStreamReader(new FileInputStream(f), "UTF-8")) {
+            StringBuilder result = new StringBuilder();
+            char[] buffer = new char[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                result.append(buffer, 0, n);
+            return result.toString();
+        }
+        catch (IOException e) {
+            return null; // unreadable, treat as a miss
+        }
+    }
+
+    // writes to a temporary file then renames, so readers never see half a trace
+    private void writeToDisk(String key, String trace) {
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(key, ".tmp", dir);
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8")) {
+                out.write(trace);
+            }
+            if (!tmp.renameTo(new File(dir, key + ".json")))
+                tmp.delete();
+        }
+        catch (IOException e) {
+            if (tmp != null)
+                tmp.delete(); // the disk tier is best-effort
+        }
+    }
+}
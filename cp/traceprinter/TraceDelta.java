@@ -0,0 +1,213 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import java.io.*;
+import java.util.*;
+import javax.json.*;
+
+/***
+ Delta encoding of traces (visualizer_args DELTA_KEYFRAME: K). Every
+ K-th execution point is printed in full, as a keyframe; the others
+ are {"delta": patch}, where the patch turns the previous execution
+ point into this one. A patch of an object is
+   {"set": {key: value}, "unset": [key], "sub": {key: patch}}
+ of an array
+   {"len": n, "set": {"i": value}, "sub": {"i": patch}}
+ and of a string that only grew (like stdout)
+   {"append": suffix}
+ where every part is optional.
+
+ The main method is a reference decoder: it turns traces, or lines
+ of an ndjson trace, back into the usual format.
+***/
+
+public class TraceDelta {
+
+    private final int keyframe;
+    private int count = 0;
+    private JsonObject previous = null;
+
+    TraceDelta(int keyframe) {
+        this.keyframe = keyframe;
+    }
+
+    // what to print for the next execution point of the trace
+    JsonObject encode(JsonObject ep) {
+        JsonObject result = ep;
+        if (count++ % keyframe != 0) {
+            JsonObject patch = patch(previous, ep);
+            if (patch != null)
+                result = Json.createObjectBuilder().add("delta", patch).build();
+        }
+        previous = ep;
+        return result;
+    }
+
+    /* A patch from a to b, an empty one if they are equal, or null
+       if b is best given whole. Values the heap cache reused are
+       the same objects, so equals is quick for everything unchanged. */
+    static JsonObject patch(JsonValue a, JsonValue b) {
+        if (a instanceof JsonObject && b instanceof JsonObject)
+            return patchObject((JsonObject)a, (JsonObject)b);
+        if (a instanceof JsonArray && b instanceof JsonArray)
+            return patchArray((JsonArray)a, (JsonArray)b);
+        if (a instanceof JsonString && b instanceof JsonString) {
+            String s = ((JsonString)a).getString(), t = ((JsonString)b).getString();
+            if (t.startsWith(s))
+                return Json.createObjectBuilder().add("append", t.substring(s.length())).build();
+        }
+        return null;
+    }
+
+    private static JsonObject patchObject(JsonObject a, JsonObject b) {
+        JsonObjectBuilder set = Json.createObjectBuilder();
+        JsonArrayBuilder unset = Json.createArrayBuilder();
+        JsonObjectBuilder sub = Json.createObjectBuilder();
+        boolean hasSet = false, hasUnset = false, hasSub = false;
+        for (Map.Entry<String, JsonValue> me : b.entrySet()) {
+            JsonValue old = a.get(me.getKey());
+            if (me.getValue().equals(old))
+                continue;
+            JsonObject p = old == null ? null : patch(old, me.getValue());
+            if (p == null) {
+                set.add(me.getKey(), me.getValue());
+                hasSet = true;
+            }
+            else {
+                sub.add(me.getKey(), p);
+                hasSub = true;
+            }
+        }
+        for (String key : a.keySet())
+            if (!b.containsKey(key)) {
+                unset.add(key);
+                hasUnset = true;
+            }
+        JsonObjectBuilder result = Json.createObjectBuilder();
+        if (hasSet) result.add("set", set);
+        if (hasUnset) result.add("unset", unset);
+        if (hasSub) result.add("sub", sub);
+        return result.build();
+    }
+
+    private static JsonObject patchArray(JsonArray a, JsonArray b) {
+        JsonObjectBuilder set = Json.createObjectBuilder();
+        JsonObjectBuilder sub = Json.createObjectBuilder();
+        boolean hasSet = false, hasSub = false;
+        for (int i=0; i<b.size(); i++) {
+            if (i < a.size() && b.get(i).equals(a.get(i)))
+                continue;
+            JsonObject p = i < a.size() ? patch(a.get(i), b.get(i)) : null;
+            if (p == null) {
+                set.add(""+i, b.get(i));
+                hasSet = true;
+            }
+            else {
+                sub.add(""+i, p);
+                hasSub = true;
+            }
+        }
+        JsonObjectBuilder result = Json.createObjectBuilder();
+        if (a.size() != b.size()) result.add("len", b.size());
+        if (hasSet) result.add("set", set);
+        if (hasSub) result.add("sub", sub);
+        return result.build();
+    }
+
+    // the inverse of patch
+    static JsonValue apply(JsonValue a, JsonObject patch) {
+        if (patch.containsKey("append"))
+            return Json.createArrayBuilder()
+                .add(((JsonString)a).getString() + patch.getString("append"))
+                .build().get(0);
+        JsonObject set = patch.getJsonObject("set");
+        JsonObject sub = patch.getJsonObject("sub");
+        if (a instanceof JsonArray) {
+            JsonArray array = (JsonArray)a;
+            int len = patch.containsKey("len") ? patch.getInt("len") : array.size();
+            JsonArrayBuilder result = Json.createArrayBuilder();
+            for (int i=0; i<len; i++) {
+                String key = ""+i;
+                if (set != null && set.containsKey(key))
+                    result.add(set.get(key));
+                else if (sub != null && sub.containsKey(key))
+                    result.add(apply(array.get(i), sub.getJsonObject(key)));
+                else
+                    result.add(array.get(i));
+            }
+            return result.build();
+        }
+        JsonObject object = (JsonObject)a;
+        Set<String> unset = new HashSet<>();
+        if (patch.containsKey("unset"))
+            for (JsonValue key : patch.getJsonArray("unset"))
+                unset.add(((JsonString)key).getString());
+        JsonObjectBuilder result = Json.createObjectBuilder();
+        for (Map.Entry<String, JsonValue> me : object.entrySet()) {
+            String key = me.getKey();
+            if (unset.contains(key) || set != null && set.containsKey(key))
+                continue;
+            if (sub != null && sub.containsKey(key))
+                result.add(key, apply(me.getValue(), sub.getJsonObject(key)));
+            else
+                result.add(key, me.getValue());
+        }
+        if (set != null)
+            for (Map.Entry<String, JsonValue> me : set.entrySet())
+                result.add(me.getKey(), me.getValue());
+        return result.build();
+    }
+
+    private JsonObject decodeNext(JsonObject ep) {
+        if (ep.containsKey("delta"))
+            ep = (JsonObject) apply(previous, ep.getJsonObject("delta"));
+        previous = ep;
+        return ep;
+    }
+
+    // a whole delta-encoded trace, as printed by InMemory, in the usual format
+    static JsonObject decode(JsonObject output) {
+        TraceDelta decoder = new TraceDelta(1);
+        JsonArrayBuilder trace = Json.createArrayBuilder();
+        for (JsonValue ep : output.getJsonArray("trace"))
+            trace.add(decoder.decodeNext((JsonObject)ep));
+        JsonObjectBuilder result = Json.createObjectBuilder();
+        for (Map.Entry<String, JsonValue> me : output.entrySet())
+            if (me.getKey().equals("trace"))
+                result.add("trace", trace);
+            else
+                result.add(me.getKey(), me.getValue());
+        return result.build();
+    }
+
+    /* Reads traces (one per line, as in daemon mode) or ndjson trace
+       lines on stdin, and prints them without deltas. */
+    public static void main(String[] args) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+        TraceDelta decoder = new TraceDelta(1);
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                System.out.println(line);
+                continue;
+            }
+            JsonObject o = Json.createReader(new StringReader(line)).readObject();
+            if (o.containsKey("trace"))
+                System.out.println(decode(o));
+            else
+                System.out.println(decoder.decodeNext(o));
+        }
+    }
+}
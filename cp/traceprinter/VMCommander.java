@@ -14,7 +14,9 @@ See README for documentation on this package.
 package traceprinter;
 
 import com.sun.jdi.*;
+import java.io.*;
 import java.util.*;
+import javax.json.*;
 
 public class VMCommander extends Thread {
 
@@ -30,6 +32,13 @@ public class VMCommander extends Thread {
     Boolean success;
     String errorMessage;
 
+    // for the instrument engine: its settings (see Tracer.start), else
+    // null; and then the trace it made, and how that ended ("done",
+    // "limit" or "timeout")
+    String instrumentSettings = null;
+    JsonArray trace;
+    String traceStatus;
+
     public VMCommander(InMemory im, ThreadReference tr) {
         this.im = im;
         this.tr = tr;
@@ -38,37 +47,57 @@ public class VMCommander extends Thread {
         this.mainClassName = im.mainClass;
     }
 
-    ObjectReference VMCommandee_instance = null;
+    /* Each JDWP command is a round trip to the debuggee, so the
+       setup below uses a fixed number of them no matter how many
+       classes the user has: all bytecode is sent as one bundle, and
+       VMCommandee.runBundle defines it and runs main in one call. */
     public void run() {
+        long injecting = System.nanoTime();
         try {
-            vm.suspend();
+            // a recycled VM is still suspended, and so is one for the
+            // instrument engine (see JSONTracingThread.handleEvent)
+            if (im.parkedThread == null && instrumentSettings == null)
+                vm.suspend();
 
-            // first, make instance of ByteClassLoader
             ClassLoader_ = classType("java.lang.ClassLoader");
             ClassLoader_SystemClassLoader = (ObjectReference) 
                 call_s(ClassLoader_, "getSystemClassLoader");
 
-            ObjectReference ByteClassLoader_instance = instantiate("traceprinter.shoelace.ByteClassLoader");
-
-            // load the classes from their bytecodes
-            for (Map.Entry<String, byte[]> me : classesToLoad.entrySet())
-                call_i(ByteClassLoader_instance, "define", vm.mirrorOf(me.getKey()), mirrorOf(vm, me.getValue()));
+            ClassType VMCommandee_ = load("traceprinter.shoelace.VMCommandee");
 
-            // load and instantiate Commandee. very similar to above!
-            VMCommandee_instance = instantiate("traceprinter.shoelace.VMCommandee");
+            // a VM we'll recycle needs a snapshot before the first user code
+            if (im.reuseVM && im.parkedThread == null)
+                call_s(load("traceprinter.shoelace.Recycler"), "recordInitialState");
 
-            ArrayReference mirrorOfArgs = newArray("java.lang.String", im.argsArray.size());
+            List<Value> args = new ArrayList<>();
             for (int i=0; i<im.argsArray.size(); i++)
-                mirrorOfArgs.setValue(i, vm.mirrorOf(im.argsArray.getString(i)));
-            
+                args.add(vm.mirrorOf(im.argsArray.getString(i)));
+            ArrayReference mirrorOfArgs = newArray("java.lang.String", args.size());
+            if (!args.isEmpty())
+                mirrorOfArgs.setValues(args);
+
+            ArrayReference mirrorOfBundle = mirrorOf(vm, bundle(classesToLoad));
+            JDI2JSON.timings.add("inject", injecting);
+
             StringReference result;
             try {
-                result = (StringReference)
-                    call_i(VMCommandee_instance, 
-                           "runMain", 
-                           vm.mirrorOf(mainClassName), 
-                           mirrorOfArgs, 
-                           vm.mirrorOf(im.givenStdin));
+                if (instrumentSettings != null)
+                    result = (StringReference)
+                        call_s(load("traceprinter.shoelace.instrument.Tracer"),
+                               "run",
+                               mirrorOfBundle,
+                               vm.mirrorOf(mainClassName),
+                               mirrorOfArgs,
+                               vm.mirrorOf(im.givenStdin),
+                               vm.mirrorOf(instrumentSettings));
+                else
+                    result = (StringReference)
+                        call_s(VMCommandee_, 
+                               "runBundle", 
+                               mirrorOfBundle,
+                               vm.mirrorOf(mainClassName), 
+                               mirrorOfArgs, 
+                               vm.mirrorOf(im.givenStdin));
             }
             catch (VMDisconnectedException e) {
                 // means we exceeded step limit
@@ -81,7 +110,19 @@ public class VMCommander extends Thread {
                 return;
             }
             */
-            if (result == null) {
+            if (instrumentSettings != null) {
+                JsonObject traced = Json.createReader(new StringReader(result.value())).readObject();
+                if (traced.containsKey("error")) {
+                    success = false;
+                    errorMessage = "Error: " + traced.getString("error");
+                }
+                else {
+                    success = true;
+                    trace = traced.getJsonArray("trace");
+                    traceStatus = traced.getString("status");
+                }
+            }
+            else if (result == null) {
                 success = true;
             }
             else {
@@ -89,7 +130,9 @@ public class VMCommander extends Thread {
                 errorMessage = "Error: " + result.value();
             }
 
-            vm.resume();
+            // to recycle the VM, leave it parked in NoopMain.main
+            if (!im.reuseVM)
+                vm.resume();
         }
         catch (Exception e) {
             e.printStackTrace(System.out);
@@ -99,20 +142,15 @@ public class VMCommander extends Thread {
 
     // utility methods
 
-    // calls the default no-arg constructor
-    private ObjectReference instantiate(String x)
+    // loads and initializes a class from the debuggee's class path,
+    // so that its static methods can be called
+    private ClassType load(String x)
         throws InvalidTypeException, ClassNotLoadedException, 
                IncompatibleThreadStateException, InvocationException { 
-        ObjectReference Class_x = (ObjectReference)
-            call_i(ClassLoader_SystemClassLoader, ClassLoader_, "loadClass", 
-                   vm.mirrorOf(x));
-        ArrayReference ConstructorArray_x = (ArrayReference)
-            call_i(Class_x, "getConstructors");
-        ObjectReference Constructor_x = (ObjectReference)
-            ConstructorArray_x.getValue(0);
-        ObjectReference x_instance = (ObjectReference)
-            call_i(Constructor_x, "newInstance");       
-        return x_instance;
+        ClassObjectReference Class_x = (ClassObjectReference)
+            call_s(classType("java.lang.Class"), "forName", 
+                   vm.mirrorOf(x), vm.mirrorOf(true), ClassLoader_SystemClassLoader);
+        return (ClassType) Class_x.reflectedType();
     }
 
     // call instance method 
@@ -130,12 +168,14 @@ public class VMCommander extends Thread {
         return o.invokeMethod(tr, m, lv(v), 0);
     }
 
-    // call static method
+    // call static method; picks the overload by number of arguments
     private Value call_s(ClassType t, String s, Value... v) 
         throws InvalidTypeException, ClassNotLoadedException, 
                IncompatibleThreadStateException, InvocationException {
-        Method m = t.methodsByName(s).get(0);
-        return t.invokeMethod(tr, m, lv(v), 0);
+        for (Method m : t.methodsByName(s))
+            if (m.argumentTypeNames().size() == v.length)
+                return t.invokeMethod(tr, m, lv(v), 0);
+        throw new RuntimeException("No method " + s + " with " + v.length + " arguments");
     }
 
     private ArrayReference newArray(String elementType, int length) {
@@ -152,13 +192,36 @@ public class VMCommander extends Thread {
         return Arrays.asList(vs);
     }
 
+    // sets all the bytes with a single JDWP command
     private ArrayReference mirrorOf(VirtualMachine vm, byte[] bytes) 
         throws InvalidTypeException, ClassNotLoadedException {
         ArrayReference result = newArray("byte", bytes.length);
-        for (int i=0; i < bytes.length; i++)
-            result.setValue(i, vm.mirrorOf(bytes[i]));
+        List<Value> values = new ArrayList<>(bytes.length);
+        for (byte b : bytes)
+            values.add(vm.mirrorOf(b));
+        if (!values.isEmpty())
+            result.setValues(values);
         return result;
     }
 
+    // the format read by VMCommandee.runBundle
+    static byte[] bundle(Map<String, byte[]> classes) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(classes.size());
+            for (Map.Entry<String, byte[]> me : classes.entrySet()) {
+                out.writeUTF(me.getKey());
+                out.writeInt(me.getValue().length);
+                out.write(me.getValue());
+            }
+            out.flush();
+            return bos.toByteArray();
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e); // can't happen in memory
+        }
+    }
+
 
 }
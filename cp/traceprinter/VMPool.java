@@ -0,0 +1,169 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import com.sun.jdi.*;
+import com.sun.jdi.request.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/***
+ A pool of debuggee VMs that are already launched and connected,
+ still suspended before NoopMain.main starts. Used in daemon mode,
+ so that booting the debuggee is not on the critical path of a trace.
+ Each VM taken from the pool is replaced in the background.
+
+ With recycling on, a VM whose program finished normally is reset
+ and handed out again, still parked inside NoopMain.main.
+***/
+
+public class VMPool {
+
+    // a debuggee ready to use; thread is null if it never ran anything
+    static class Parked {
+        final VirtualMachine vm;
+        final ThreadReference thread;
+        Parked(VirtualMachine vm, ThreadReference thread) {
+            this.vm = vm;
+            this.thread = thread;
+        }
+    }
+
+    // stdlib classes that are safe to share between requests, when
+    // loaded from the classpath; StdIn and StdRandom get refreshed
+    private static final Set<String> resettableStdlib = new HashSet<>
+        (Arrays.asList("Stack", "Queue", "ST", "Point", "In", "Out", "StdIn", "StdOut",
+                       "StdRandom", "StdStats", "StdArrayIO", "Stopwatch"));
+
+    private final BlockingQueue<Parked> ready = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Parked> recycled = new LinkedBlockingQueue<>();
+
+    private final ExecutorService launcher = Executors.newSingleThreadExecutor
+        (new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "vm-pool-launcher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final Runnable launchOne = new Runnable() {
+            public void run() {
+                VirtualMachine vm = InMemory.launchVM("traceprinter.shoelace.NoopMain");
+                if (vm != null)
+                    ready.add(new Parked(vm, null));
+            }
+        };
+
+    public VMPool(int size) {
+        for (int i=0; i<size; i++)
+            launcher.submit(launchOne);
+    }
+
+    // returns a debuggee, launching one now if none is ready
+    Parked take() {
+        Parked p;
+        while ((p = recycled.poll()) != null) {
+            if (p.vm.process().isAlive())
+                return p;
+            p.vm.dispose();
+        }
+        launcher.submit(launchOne);
+        while ((p = ready.poll()) != null) {
+            if (p.vm.process().isAlive())
+                return p;
+            p.vm.dispose(); // died while waiting in the pool
+        }
+        VirtualMachine vm = InMemory.launchVM("traceprinter.shoelace.NoopMain");
+        return vm == null ? null : new Parked(vm, null);
+    }
+
+    /* Resets a VM whose program finished normally and puts it back
+       in the pool. If isolation from the next request can't be
+       guaranteed, the VM is killed instead. */
+    void recycle(VirtualMachine vm, ThreadReference parked) {
+        try {
+            EventRequestManager mgr = vm.eventRequestManager();
+            List<EventRequest> requests = new ArrayList<>();
+            requests.addAll(mgr.breakpointRequests());
+            requests.addAll(mgr.stepRequests());
+            requests.addAll(mgr.methodEntryRequests());
+            requests.addAll(mgr.methodExitRequests());
+            requests.addAll(mgr.exceptionRequests());
+            requests.addAll(mgr.classPrepareRequests());
+            requests.addAll(mgr.threadDeathRequests());
+            requests.addAll(mgr.modificationWatchpointRequests());
+            mgr.deleteEventRequests(requests);
+
+            String reason = stdlibStateReason(vm);
+            if (reason == null) {
+                ClassType recycler = (ClassType)
+                    vm.classesByName("traceprinter.shoelace.Recycler").get(0);
+                Method reset = recycler.methodsByName("resetForReuse").get(0);
+                StringReference result = (StringReference)
+                    recycler.invokeMethod(parked, reset,
+                                           Arrays.asList((Value)vm.mirrorOf(isShared(vm, "StdIn")),
+                                                         vm.mirrorOf(isShared(vm, "StdRandom"))),
+                                           0);
+                if (result != null)
+                    reason = result.value();
+            }
+
+            // throw away anything the last program printed but we didn't show
+            drain(vm.process().getInputStream());
+            drain(vm.process().getErrorStream());
+
+            if (reason == null) {
+                recycled.add(new Parked(vm, parked));
+                return;
+            }
+        }
+        catch (Exception e) {
+            // fall through, this VM is not reusable
+        }
+        discard(vm);
+    }
+
+    static void discard(VirtualMachine vm) {
+        try {
+            vm.exit(0);
+        }
+        catch (VMDisconnectedException e) {}
+    }
+
+    // is this stdlib class initialized, and shared (loaded from the classpath)?
+    private static boolean isShared(VirtualMachine vm, String className) {
+        for (ReferenceType rt : vm.classesByName(className)) {
+            ClassLoaderReference loader = rt.classLoader();
+            if (rt.isInitialized() && (loader == null || !loader.referenceType().name()
+                                       .equals("traceprinter.shoelace.ByteClassLoader")))
+                return true;
+        }
+        return false;
+    }
+
+    // returns null if all stdlib statics can be reset, else the reason
+    private static String stdlibStateReason(VirtualMachine vm) {
+        for (String className : JDI2JSON.PU_stdlib)
+            if (!resettableStdlib.contains(className) && isShared(vm, className))
+                return className + " has static state";
+        return null;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[2048];
+        while (in.available() > 0 && in.read(buffer) >= 0) {}
+    }
+}
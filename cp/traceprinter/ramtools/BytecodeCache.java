@@ -0,0 +1,205 @@
+package traceprinter.ramtools;
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/***
+ A content-addressed cache of compile results. The key is a hash
+ of the source files and the javac options, so resubmitting the same
+ code skips the compiler entirely. Both successful compiles (the
+ class name to bytecode map) and compile-time errors are cached.
+
+ The cache is an in-memory LRU bounded by the total size of its
+ entries, plus an optional directory on disk that is consulted on
+ a memory miss. Disk entries are never evicted by this class.
+***/
+
+public class BytecodeCache {
+
+    // a cached compile: either bytecodes, or an error message + position
+    public static class Entry {
+        public final Map<String, byte[]> bytecodes;
+        public final String errmsg;
+        public final long row, col;
+
+        private Entry(Map<String, byte[]> bytecodes, String errmsg, long row, long col) {
+            this.bytecodes = bytecodes == null ? null : Collections.unmodifiableMap(bytecodes);
+            this.errmsg = errmsg;
+            this.row = row;
+            this.col = col;
+        }
+
+        public static Entry success(Map<String, byte[]> bytecodes) {
+            return new Entry(new TreeMap<>(bytecodes), null, 0, 0);
+        }
+
+        public static Entry error(String errmsg, long row, long col) {
+            return new Entry(null, errmsg, row, col);
+        }
+
+        public boolean isError() {
+            return errmsg != null;
+        }
+
+        // rough number of bytes held, for the LRU bound
+        long size() {
+            long result = 64;
+            if (errmsg != null)
+                result += 2 * errmsg.length();
+            if (bytecodes != null)
+                for (Map.Entry<String, byte[]> me : bytecodes.entrySet())
+                    result += 64 + 2 * me.getKey().length() + me.getValue().length;
+            return result;
+        }
+    }
+
+    private static final int MAGIC = 0xBC0DECAC;
+
+    private final long maxBytes;
+    private final File dir;
+    private long totalBytes = 0;
+
+    private final LinkedHashMap<String, Entry> memory =
+        new LinkedHashMap<>(16, 0.75f, true); // access order, eldest is LRU
+
+    // maxBytes bounds the in-memory tier; dir may be null for no disk tier
+    public BytecodeCache(long maxBytes, File dir) {
+        this.maxBytes = maxBytes;
+        this.dir = dir;
+        if (dir != null)
+            dir.mkdirs();
+    }
+
+    /* Hashes everything that determines the compiler output. The java
+       version and class path are included, since the same source can
+       compile differently against a different JDK or stdlib. */
+    public static String key(String[][] classCodePairs, Iterable<String> options) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        update(md, System.getProperty("java.version"));
+        update(md, System.getProperty("java.class.path"));
+        if (options != null)
+            for (String option : options)
+                update(md, option);
+        update(md, null);
+        for (String[] pair : classCodePairs) {
+            update(md, pair[0]);
+            update(md, pair[1]);
+        }
+        StringBuilder result = new StringBuilder();
+        for (byte b : md.digest())
+            result.append(String.format("%02x", b & 0xFF));
+        return result.toString();
+    }
+
+    // length-prefixed, so that different splits never collide
+    private static void update(MessageDigest md, String s) {
+        if (s == null) {
+            md.update(new byte[] {-1, -1, -1, -1});
+            return;
+        }
+        byte[] bytes;
+        try {
+            bytes = s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        int n = bytes.length;
+        md.update(new byte[] {(byte)(n >>> 24), (byte)(n >>> 16), (byte)(n >>> 8), (byte)n});
+        md.update(bytes);
+    }
+
+    // returns null on a miss
+    public synchronized Entry get(String key) {
+        Entry result = memory.get(key);
+        if (result == null && dir != null) {
+            result = readFromDisk(key);
+            if (result != null)
+                putInMemory(key, result);
+        }
+        return result;
+    }
+
+    public synchronized void put(String key, Entry entry) {
+        putInMemory(key, entry);
+        if (dir != null)
+            writeToDisk(key, entry);
+    }
+
+    private void putInMemory(String key, Entry entry) {
+        Entry old = memory.put(key, entry);
+        if (old != null)
+            totalBytes -= old.size();
+        totalBytes += entry.size();
+        Iterator<Entry> it = memory.values().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            totalBytes -= it.next().size();
+            it.remove();
+        }
+    }
+
+    private Entry readFromDisk(String key) {
+        File f = new File(dir, key);
+        if (!f.isFile()) return null;
+        try (DataInputStream in = new DataInputStream
+             (new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != MAGIC) return null;
+            if (in.readBoolean()) {
+                String errmsg = in.readUTF();
+                long row = in.readLong();
+                long col = in.readLong();
+                return Entry.error(errmsg, row, col);
+            }
+            int n = in.readInt();
+            Map<String, byte[]> bytecodes = new TreeMap<>();
+            for (int i=0; i<n; i++) {
+                String className = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                bytecodes.put(className, bytes);
+            }
+            return Entry.success(bytecodes);
+        }
+        catch (IOException e) {
+            return null; // unreadable or truncated, treat as a miss
+        }
+    }
+
+    // writes to a temporary file then renames, so readers never see half an entry
+    private void writeToDisk(String key, Entry entry) {
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(key, ".tmp", dir);
+            try (DataOutputStream out = new DataOutputStream
+                 (new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeBoolean(entry.isError());
+                if (entry.isError()) {
+                    out.writeUTF(entry.errmsg);
+                    out.writeLong(entry.row);
+                    out.writeLong(entry.col);
+                }
+                else {
+                    out.writeInt(entry.bytecodes.size());
+                    for (Map.Entry<String, byte[]> me : entry.bytecodes.entrySet()) {
+                        out.writeUTF(me.getKey());
+                        out.writeInt(me.getValue().length);
+                        out.write(me.getValue());
+                    }
+                }
+            }
+            if (!tmp.renameTo(new File(dir, key)))
+                tmp.delete();
+        }
+        catch (IOException e) {
+            if (tmp != null)
+                tmp.delete(); // the disk tier is best-effort
+        }
+    }
+}
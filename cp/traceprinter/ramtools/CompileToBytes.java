@@ -19,10 +19,23 @@ public class CompileToBytes {
     public Iterable<String> classesForAnnotation = null;
     // names of classes to be processed by annotation processing, null means no class names
 
+    public Map<String, byte[]> classPath = null;
+    // already-compiled classes (name to bytecode) the sources can use, as if they
+    // were on the class path; they are not part of the output. null means none
+
     public Map<String, byte[]> bytecodes;
-    // output variable: the class names and bytecodes generated by compiling
-    
-    private boolean used = false;
+    // output variable: the class names and bytecodes generated by the last compile
+
+    /* The compiler and its standard file manager are shared by all
+       instances and kept for the life of the VM, so that javac only 
+       indexes the platform classes once. The file manager is not 
+       thread-safe, so compiles are serialized on this lock. Options
+       the file manager handles (-classpath, -bootclasspath, -encoding
+       and the like) would stick to it and leak into later compiles,
+       so a compile given any of them gets a file manager of its own. */
+    private static final Object lock = new Object();
+    private static JavaCompiler compiler;
+    private static StandardJavaFileManager standardFileManager;
 
     public CompileToBytes() {}
 
@@ -38,21 +51,38 @@ public class CompileToBytes {
     }
 
     public Map<String, byte[]> compileFiles(String[][] classCodePairs) {
-        if (used) throw new RuntimeException("You already used this CompileToBytes.");
-        used = true;
-        
+        bytecodes = null;
+
         ArrayList<RAMJavaFile> sourceFiles = new ArrayList<>();
         for (String[] pair : classCodePairs)
             sourceFiles.add(new RAMJavaFile(pair[0], pair[1]));
-        
-        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
 
-        RAMClassFileManager fileManager = new
-            RAMClassFileManager(compiler
-                                .getStandardFileManager(null, null, null));
+        RAMClassFileManager fileManager;
+        boolean result;
+        synchronized (lock) {
+            if (compiler == null) {
+                compiler = ToolProvider.getSystemJavaCompiler();
+                standardFileManager = compiler.getStandardFileManager(null, null, null);
+            }
 
-        boolean result = compiler.getTask(compilerOutput, fileManager, diagnosticListener, 
+            StandardJavaFileManager standard = standardFileManager;
+            if (setsFileManager(options))
+                standard = compiler.getStandardFileManager(null, null, null);
+
+            if (classPath == null)
+                fileManager = new RAMClassFileManager(standard);
+            else
+                fileManager = new RAMClassFileManager(standard, classPath);
+
+            try {
+                result = compiler.getTask(compilerOutput, fileManager, diagnosticListener, 
                                           options, classesForAnnotation, sourceFiles).call();
+            }
+            finally {
+                if (standard != standardFileManager)
+                    close(standard);
+            }
+        }
 
         if (!result) return null;
 
@@ -64,6 +94,24 @@ public class CompileToBytes {
         return bytecodes;
     }
 
+    // would any of these options change the state of a file manager?
+    private static boolean setsFileManager(Iterable<String> options) {
+        if (options != null)
+            for (String option : options)
+                if (standardFileManager.isSupportedOption(option) >= 0)
+                    return true;
+        return false;
+    }
+
+    private static void close(JavaFileManager fileManager) {
+        try {
+            fileManager.close();
+        }
+        catch (IOException e) {
+            // nothing was written through it, so nothing is lost
+        }
+    }
+
 
     /* main() Method.
 
@@ -83,6 +131,10 @@ public class CompileToBytes {
     
     bytecodes is a map from class names (possibly including . and $) to bytecodes
 
+    with the argument --server, reads any number of such objects, one
+    per line, and prints one output object per line. the compiler stays
+    warm between them.
+
     */
 
     /* sample StdIn:
@@ -114,9 +166,36 @@ public class CompileToBytes {
             return;
         }
 
+        // --server: one input object per line, one output object per line,
+        // all compiled by the same warm compiler
+        if (args.length > 0 && args[0].equals("--server")) {
+            BufferedReader br = new BufferedReader(isr);
+            String line;
+            try {
+                while ((line = br.readLine()) != null) {
+                    if (line.trim().isEmpty()) continue;
+                    System.out.println(compileRequest(new StringReader(line)));
+                    System.out.flush();
+                }
+            }
+            catch (IOException e) {
+                System.out.println(Json
+                                   .createObjectBuilder()
+                                   .add("status", "Internal Error")
+                                   .add("errmsg", "Could not read input: " + e)
+                                   .build());
+            }
+            return;
+        }
+
+        System.out.println(compileRequest(isr));
+    }
+
+    // reads one input object as described above, returns the output object
+    static JsonObject compileRequest(Reader input) {
         String[][] pairs;
         try {
-            JsonReader jr = Json.createReader(isr);
+            JsonReader jr = Json.createReader(input);
             JsonObject sourceFiles = jr.readObject();
             pairs = new String[sourceFiles.size()][2];
             int i = 0;
@@ -133,12 +212,11 @@ public class CompileToBytes {
             }
         }
         catch (Throwable t) {
-            System.out.println(Json
-                               .createObjectBuilder()
-                               .add("status", "Internal Error")
-                               .add("errmsg", "Could not parse input: " + t)
-                               .build());
-            return;            
+            return Json
+                .createObjectBuilder()
+                .add("status", "Internal Error")
+                .add("errmsg", "Could not parse input: " + t)
+                .build();
         }
         
         CompileToBytes c2b = new CompileToBytes();
@@ -162,22 +240,20 @@ public class CompileToBytes {
                 .add("endpos", err.getEndPosition())
                 .build();
             if (err.getKind() == Diagnostic.Kind.ERROR) {
-                System.out.println(Json
-                                   .createObjectBuilder()
-                                   .add("status", "Compile-time Error")
-                                   .add("error", jerr)
-                                   .build());
-                return;
+                return Json
+                    .createObjectBuilder()
+                    .add("status", "Compile-time Error")
+                    .add("error", jerr)
+                    .build();
             }
         }
 
         if (classMap == null && jerr == null) {
-            System.out.println(Json
-                               .createObjectBuilder()
-                               .add("status", "Internal Error")
-                               .add("errmsg", "Did not compile, but gave no errors!")
-                               .build());
-            return;
+            return Json
+                .createObjectBuilder()
+                .add("status", "Internal Error")
+                .add("errmsg", "Did not compile, but gave no errors!")
+                .build();
         }
         
         JsonObjectBuilder classFiles = Json.createObjectBuilder();
@@ -197,6 +273,6 @@ public class CompileToBytes {
         job.add("status", "Success")
             .add("bytecodes", classFiles.build());
         if (jerr != null) job.add("warning", jerr);
-        System.out.println(job.build());
+        return job.build();
     }
 }
\ No newline at end of file
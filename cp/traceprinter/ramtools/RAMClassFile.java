@@ -34,6 +34,27 @@ public class RAMClassFile extends SimpleJavaFileObject {
                          + kind.extension), kind);
     }
 
+    /**
+     * Class name with . separators, set for already-compiled classes
+     * that are offered to the compiler as part of its class path
+     */
+    String binaryName = null;
+
+    /**
+     * Wraps existing byte code, so that the compiler can read it
+     * as if it were a class file on the class path
+     *
+     * @param name
+     *            Full name of the compiled class
+     * @param bytes
+     *            its byte code
+     */
+    public RAMClassFile(String name, byte[] bytes) {
+        this(name, Kind.CLASS);
+        this.binaryName = name;
+        bos.write(bytes, 0, bytes.length);
+    }
+
     /**
      * Will be used by our file manager to get the byte code that
      * can be put into memory to instantiate our class
@@ -53,4 +74,13 @@ public class RAMClassFile extends SimpleJavaFileObject {
     public OutputStream openOutputStream() throws IOException {
         return bos;
     }
+
+    /**
+     * Lets the compiler read the byte code back, for classes
+     * on the class path
+     */
+    @Override
+    public InputStream openInputStream() throws IOException {
+        return new ByteArrayInputStream(bos.toByteArray());
+    }
 }
\ No newline at end of file
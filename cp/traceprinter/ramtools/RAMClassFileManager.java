@@ -36,6 +36,51 @@ public class RAMClassFileManager
         super(standardManager);
     }
 
+    /**
+     * Classes already compiled, that the compiler should see on the
+     * class path (in addition to the real class path)
+     */
+    private Map<String, RAMClassFile> classPath = new TreeMap<>();
+
+    public RAMClassFileManager(StandardJavaFileManager standardManager,
+                               Map<String, byte[]> precompiled) {
+        super(standardManager);
+        for (Map.Entry<String, byte[]> me : precompiled.entrySet())
+            classPath.put(me.getKey(), new RAMClassFile(me.getKey(), me.getValue()));
+    }
+
+    /**
+     * Adds the precompiled classes in the given package to what
+     * the compiler finds on the class path
+     */
+    @Override
+    public Iterable<JavaFileObject> list
+        (Location location, String packageName, 
+         Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
+        Iterable<JavaFileObject> standard = super.list(location, packageName, kinds, recurse);
+        if (location != StandardLocation.CLASS_PATH || classPath.isEmpty()
+            || !kinds.contains(JavaFileObject.Kind.CLASS))
+            return standard;
+
+        List<JavaFileObject> result = new ArrayList<>();
+        for (RAMClassFile f : classPath.values()) {
+            int dot = f.binaryName.lastIndexOf('.');
+            String pkg = dot < 0 ? "" : f.binaryName.substring(0, dot);
+            if (pkg.equals(packageName) || recurse && pkg.startsWith(packageName + "."))
+                result.add(f);
+        }
+        for (JavaFileObject f : standard)
+            result.add(f);
+        return result;
+    }
+
+    @Override
+    public String inferBinaryName(Location location, JavaFileObject file) {
+        if (file instanceof RAMClassFile && ((RAMClassFile)file).binaryName != null)
+            return ((RAMClassFile)file).binaryName;
+        return super.inferBinaryName(location, file);
+    }
+
     /**
      * Will be used by us to get the class loader for our
      * compiled class. It creates an anonymous class
@@ -0,0 +1,108 @@
+package traceprinter.shoelace;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+/***
+This class lets the debugger run several user programs, one after
+another, in the same debugee VM. Each program gets its own 
+ByteClassLoader, so the user's own statics start fresh; this class
+takes care of the rest of the global state. It is kept separate from
+VMCommandee so that it's only loaded when recycling is turned on.
+***/
+
+public class Recycler {
+
+    // state from before any user code ran, so that resetForReuse
+    // can tell whether a recycled debugee is as good as a fresh one
+    private static Set<Thread> initialThreads;
+    private static java.io.InputStream initialIn;
+    private static java.io.PrintStream initialOut;
+    private static java.io.PrintStream initialErr;
+    private static Properties initialProperties;
+    private static Locale initialLocale;
+    private static TimeZone initialTimeZone;
+
+    // stdlib classes on the classpath whose statics must be 
+    // refreshed before the next user program runs
+    private static boolean resyncStdIn = false;
+    private static boolean reseedStdRandom = false;
+
+    // called by the debugger before the first user program
+    public static void recordInitialState() {
+        initialThreads = new HashSet<>(Thread.getAllStackTraces().keySet());
+        initialIn = System.in;
+        initialOut = System.out;
+        initialErr = System.err;
+        initialProperties = (Properties) System.getProperties().clone();
+        initialLocale = Locale.getDefault();
+        initialTimeZone = TimeZone.getDefault();
+    }
+
+    /* Called by the debugger between two user programs. Restores
+       the standard streams and checks for leftover state we can't
+       undo. Returns null if the VM can be reused, otherwise the 
+       reason why not. */
+    public static String resetForReuse(boolean stdinUsed, boolean stdRandomUsed) {
+        if (initialThreads == null)
+            return "initial state was not recorded";
+
+        System.out.flush();
+        System.err.flush();
+        System.setIn(initialIn);
+        System.setOut(initialOut);
+        System.setErr(initialErr);
+        if (initialOut.checkError() || initialErr.checkError())
+            return "standard output was closed";
+
+        for (Thread t : Thread.getAllStackTraces().keySet())
+            if (t.isAlive() && !initialThreads.contains(t))
+                return "thread " + t.getName() + " is still running";
+
+        if (!System.getProperties().equals(initialProperties))
+            return "system properties were changed";
+        if (!Locale.getDefault().equals(initialLocale))
+            return "default locale was changed";
+        if (!TimeZone.getDefault().equals(initialTimeZone))
+            return "default time zone was changed";
+        if (Thread.getDefaultUncaughtExceptionHandler() != null)
+            return "default uncaught exception handler was set";
+        if (System.getSecurityManager() != null)
+            return "a security manager was installed";
+
+        ByteClassLoader.instance = null;
+        resyncStdIn = stdinUsed;
+        reseedStdRandom = stdRandomUsed;
+        VMCommandee.recycled = true;
+        return null;
+    }
+
+    // called by VMCommandee once System.in is set for the new program;
+    // returns null if it worked, else an error message
+    static String refreshStdlib() {
+        // StdIn captured the previous System.in when it was initialized
+        if (resyncStdIn && !callStdlib("StdIn", "resync", new Class<?>[0]))
+            return "Internal error: can't resync StdIn";
+        if (reseedStdRandom && !callStdlib("StdRandom", "setSeed", new Class<?>[]{long.class}, 
+                                           System.currentTimeMillis()))
+            return "Internal error: can't reseed StdRandom";
+        resyncStdIn = reseedStdRandom = false;
+        return null;
+    }
+
+    // calls a (possibly private) static method of a stdlib class
+    // loaded from the classpath; returns false if that failed
+    private static boolean callStdlib(String className, String methodName, 
+                                      Class<?>[] types, Object... args) {
+        try {
+            Method m = Class.forName(className, true, ClassLoader.getSystemClassLoader())
+                .getDeclaredMethod(methodName, types);
+            m.setAccessible(true);
+            m.invoke(null, args);
+            return true;
+        }
+        catch (ReflectiveOperationException | SecurityException e) {
+            return false;
+        }
+    }
+}
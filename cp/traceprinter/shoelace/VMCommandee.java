@@ -10,6 +10,38 @@ is in the debugger JVM, and VMCommandee is in the debugee.)
 
 public class VMCommandee {
 
+    // set by Recycler when this VM already ran an earlier program
+    static boolean recycled = false;
+
+    /* Defines every class in the bundle (a count, then for each class
+       its name, length and bytecode) with a fresh ByteClassLoader, then
+       runs main like runMain. This way the debugger can start a program
+       with one call, however many classes it has. */
+    public static String runBundle(byte[] bundle, String className, String[] args, String stdin) {
+        if (!define(new ByteClassLoader(), bundle))
+            return "Internal error: bad class bundle";
+        return new VMCommandee().runMain(className, args, stdin);
+    }
+
+    // false if the bundle (see VMCommander.bundle) can't be read
+    public static boolean define(ByteClassLoader loader, byte[] bundle) {
+        try {
+            java.io.DataInputStream in = new java.io.DataInputStream
+                (new java.io.ByteArrayInputStream(bundle));
+            int n = in.readInt();
+            for (int i=0; i<n; i++) {
+                String name = in.readUTF();
+                byte[] bytecode = new byte[in.readInt()];
+                in.readFully(bytecode);
+                loader.define(name, bytecode);
+            }
+            return true;
+        }
+        catch (java.io.IOException e) {
+            return false;
+        }
+    }
+
     // returns null if everything worked
     // else, returns an error message
     public String runMain(String className, String[] args, String stdin) {
@@ -36,6 +68,12 @@ public class VMCommandee {
                 return "Internal error: can't setIn";
             }
 
+        if (recycled) {
+            String error = Recycler.refreshStdlib();
+            if (error != null)
+                return error;
+        }
+
         int modifiers = main.getModifiers();
         if (modifiers != (Modifier.PUBLIC | Modifier.STATIC))
             return "Class "+className+" needs public static void main(String[] args)";
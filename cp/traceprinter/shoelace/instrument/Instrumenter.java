@@ -0,0 +1,476 @@
+package traceprinter.shoelace.instrument;
+
+import java.util.*;
+import jdk.internal.org.objectweb.asm.*;
+import jdk.internal.org.objectweb.asm.tree.*;
+import jdk.internal.org.objectweb.asm.tree.analysis.*;
+
+/***
+ For the "instrument" engine (options.engine, see README): rewrites
+ each user class as InstrumentingClassLoader defines it, so that its
+ methods tell Tracer what they do instead of the debugger stepping
+ through them. It uses the copy of ASM that comes with the JDK, which
+ is why this package has its own target in the Makefile.
+
+ The probes are calls of Tracer's static methods, which leave the
+ stack and locals as they were:
+ - where a method starts: enter, set for each argument, then call
+ - where a line starts, where a jump lands, after a store, where a
+   variable goes out of scope and after a native library call: step
+ - just after a store to a local variable: set, with its new value
+ - before an invoke, return or throw: at, ret or thrown
+ - where a handler starts: caught
+ - around the whole method: a handler that calls unwind and rethrows
+ - at the start of <clinit>, which is added if there is none:
+   initializing
+ The places probes report from are Tracer.Sites, worked out here
+ once: their line, and which variables are in scope there.
+***/
+
+public class Instrumenter implements Opcodes {
+
+    private static final String TRACER = "traceprinter/shoelace/instrument/Tracer";
+
+    /* Why the instrument engine can't trace a program with these
+       classes, or null if it can. Run by the debugger, which then
+       uses jdi instead. */
+    public static String unsupported(Collection<byte[]> classes) {
+        final String[] reason = {null};
+        for (byte[] bytecode : classes) {
+            new ClassReader(bytecode).accept(new ClassVisitor(ASM5) {
+                @Override
+                public void visit(int version, int access, String name, String signature,
+                                  String superName, String[] interfaces) {
+                    if ("java/lang/Thread".equals(superName))
+                        reason[0] = "it uses threads";
+                }
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String desc,
+                                                 String signature, String[] exceptions) {
+                    if (name.equals("finalize") && desc.equals("()V"))
+                        reason[0] = "it has a finalizer";
+                    return new MethodVisitor(ASM5) {
+                        @Override
+                        public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+                            reason[0] = "it uses lambdas";
+                        }
+                        @Override
+                        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+                            if (owner.equals("java/lang/System") && name.equals("exit")
+                                || owner.equals("java/lang/Runtime") && (name.equals("exit") || name.equals("halt")))
+                                reason[0] = "it calls System.exit";
+                            else if (owner.equals("java/lang/Thread") && name.equals("start")
+                                     || owner.startsWith("java/util/concurrent/"))
+                                reason[0] = "it uses threads";
+                        }
+                    };
+                }
+            }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+            if (reason[0] != null)
+                return reason[0];
+        }
+        return null;
+    }
+
+    // the class, with probes; registers its methods and sites with Tracer
+    public static byte[] instrument(byte[] bytecode) {
+        // where each label is in the original code, for the
+        // LocalVariableTable's start_pc; see Tracer.Var.key
+        final Map<Label, Integer> offsets = new IdentityHashMap<>();
+        ClassReader reader = new ClassReader(bytecode) {
+            @Override
+            protected Label readLabel(int offset, Label[] labels) {
+                Label result = super.readLabel(offset, labels);
+                offsets.put(result, offset);
+                return result;
+            }
+        };
+        ClassNode cn = new ClassNode();
+        reader.accept(cn, ClassReader.EXPAND_FRAMES);
+        Map<LabelNode, Integer> pcs = new IdentityHashMap<>();
+        for (Map.Entry<Label, Integer> me : offsets.entrySet())
+            if (me.getKey().info instanceof LabelNode)
+                pcs.put((LabelNode)me.getKey().info, me.getValue());
+
+        boolean hasInitializer = false;
+        for (MethodNode mn : cn.methods) {
+            hasInitializer |= mn.name.equals("<clinit>");
+            if (mn.instructions.size() > 0)
+                new MethodRewriter(cn, mn, pcs).run();
+        }
+        if (!hasInitializer) {
+            MethodNode clinit = new MethodNode(ACC_STATIC, "<clinit>", "()V", null, null);
+            clinit.instructions.add(initializing(cn.name));
+            clinit.instructions.add(new InsnNode(RETURN));
+            cn.methods.add(clinit);
+        }
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cn.accept(cw);
+        return cw.toByteArray();
+    }
+
+    private static InsnList initializing(String className) {
+        InsnList result = new InsnList();
+        result.add(new LdcInsnNode(Type.getObjectType(className)));
+        result.add(probe("initializing", "(Ljava/lang/Class;)V"));
+        return result;
+    }
+
+    private static MethodInsnNode probe(String name, String desc) {
+        return new MethodInsnNode(INVOKESTATIC, TRACER, name, desc, false);
+    }
+
+    private static AbstractInsnNode push(int value) {
+        if (value >= -1 && value <= 5)
+            return new InsnNode(ICONST_0 + value);
+        if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+            return new IntInsnNode(BIPUSH, value);
+        if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+            return new IntInsnNode(SIPUSH, value);
+        return new LdcInsnNode(value);
+    }
+
+    // the descriptor of Tracer.set and Tracer.ret for a value of this type
+    private static String probeType(char type) {
+        switch (type) {
+        case 'J': return "J";
+        case 'F': return "F";
+        case 'D': return "D";
+        case 'L': case '[': return "Ljava/lang/Object;";
+        default: return "I";
+        }
+    }
+
+    // native library methods, which the debugger steps over, by owner, name and descriptor
+    private static final Map<String, Boolean> nativeMethods = new HashMap<>();
+
+    private static boolean isNative(String owner, String name, String desc) {
+        if (owner.startsWith("["))
+            owner = "java/lang/Object"; // clone
+        if (!owner.startsWith("java/") || name.equals("<init>"))
+            return false;
+        String key = owner + "." + name + desc;
+        Boolean result = nativeMethods.get(key);
+        if (result == null) {
+            result = false;
+            try {
+                Deque<Class<?>> types = new ArrayDeque<>();
+                types.add(Class.forName(owner.replace('/', '.'), false, ClassLoader.getSystemClassLoader()));
+                search:
+                while (!types.isEmpty()) {
+                    Class<?> c = types.remove();
+                    for (java.lang.reflect.Method m : c.getDeclaredMethods())
+                        if (m.getName().equals(name) && Type.getMethodDescriptor(m).equals(desc)) {
+                            result = java.lang.reflect.Modifier.isNative(m.getModifiers());
+                            break search;
+                        }
+                    if (c.getSuperclass() != null)
+                        types.add(c.getSuperclass());
+                    types.addAll(Arrays.asList(c.getInterfaces()));
+                }
+            }
+            catch (ClassNotFoundException | LinkageError e) {
+            }
+            nativeMethods.put(key, result);
+        }
+        return result;
+    }
+
+    private static class MethodRewriter {
+        private final ClassNode cn;
+        private final MethodNode mn;
+        private final Map<LabelNode, Integer> pcs;
+
+        private AbstractInsnNode[] code;   // as it was, before the probes
+        private final Map<AbstractInsnNode, Integer> index = new IdentityHashMap<>();
+        private Tracer.MethodInfo info;
+
+        // the non-arguments we may show, and the code indices where each is in scope
+        private final List<Tracer.Var> vars = new ArrayList<>();
+        private final List<int[]> scopes = new ArrayList<>();
+
+        private int[] lines;
+        private boolean[] lineStart, stop, handler;
+        private final Map<Integer, Tracer.Site> sites = new HashMap<>();
+
+        MethodRewriter(ClassNode cn, MethodNode mn, Map<LabelNode, Integer> pcs) {
+            this.cn = cn;
+            this.mn = mn;
+            this.pcs = pcs;
+        }
+
+        void run() {
+            code = mn.instructions.toArray();
+            for (int i=0; i<code.length; i++)
+                index.put(code[i], i);
+
+            boolean isStatic = (mn.access & ACC_STATIC) != 0;
+            Type[] argTypes = Type.getArgumentTypes(mn.desc);
+            char[] types = new char[argTypes.length];
+            int[] slots = new int[argTypes.length];
+            int slot = isStatic ? 0 : 1;
+            for (int i=0; i<argTypes.length; i++) {
+                types[i] = argTypes[i].getDescriptor().charAt(0);
+                slots[i] = slot;
+                slot += argTypes[i].getSize();
+            }
+            info = new Tracer.MethodInfo(cn.name.replace('/', '.'), mn.name, isStatic,
+                                         Type.getReturnType(mn.desc).getDescriptor().charAt(0),
+                                         types, slots, mn.maxLocals);
+            // as the debugger finds, reading them in a bridge method
+            info.unreadableArgs = (mn.access & ACC_BRIDGE) != 0 && types.length > 0;
+            readVariables(slot);
+            readLines();
+            findStops();
+            int superCall = mn.name.equals("<init>") ? findSuperCall() : -1;
+            if (superCall >= 0)
+                site(superCall).superCall = true;
+            info.entry = site(firstInstruction(0));
+            Tracer.register(info);
+
+            LabelNode start = new LabelNode(), end = new LabelNode(), unwind = new LabelNode();
+            InsnList entry = new InsnList();
+            if (mn.name.equals("<clinit>"))
+                entry.add(initializing(cn.name));
+            entry.add(push(info.id));
+            entry.add(probe("enter", "(I)V"));
+            if (!isStatic && !mn.name.equals("<init>"))
+                entry.add(set('L', 0));
+            for (int i=0; i<types.length; i++)
+                entry.add(set(types[i], slots[i]));
+            entry.add(probe("call", "()V"));
+            if (superCall < 0)
+                entry.add(start);
+            mn.instructions.insertBefore(code[0], entry);
+
+            for (int i=0; i<code.length; i++) {
+                AbstractInsnNode insn = code[i];
+                int op = insn.getOpcode();
+                if (op < 0)
+                    continue;
+                InsnList before = new InsnList();
+                if (handler[i]) {
+                    before.add(new InsnNode(DUP));
+                    before.add(push(site(i).id));
+                    before.add(probe("caught", "(Ljava/lang/Throwable;I)V"));
+                }
+                else if (stop[i] || lineStart[i]) {
+                    before.add(push(site(i).id));
+                    before.add(probe("step", "(I)V"));
+                }
+                if (insn instanceof MethodInsnNode) {
+                    before.add(push(site(i).id));
+                    before.add(probe("at", "(I)V"));
+                }
+                else if (op >= IRETURN && op <= RETURN) {
+                    char type = Type.getReturnType(mn.desc).getDescriptor().charAt(0);
+                    if (op != RETURN)
+                        before.add(new InsnNode(type == 'J' || type == 'D' ? DUP2 : DUP));
+                    before.add(push(site(i).id));
+                    before.add(probe("ret", op == RETURN ? "(I)V" : "(" + probeType(type) + "I)V"));
+                }
+                else if (op == ATHROW) {
+                    before.add(new InsnNode(DUP));
+                    before.add(push(site(i).id));
+                    before.add(probe("thrown", "(Ljava/lang/Throwable;I)V"));
+                }
+                if (before.size() > 0)
+                    mn.instructions.insertBefore(insn, before);
+
+                InsnList after = new InsnList();
+                if (op >= ISTORE && op <= ASTORE)
+                    after.add(set("IJFDA".charAt(op - ISTORE), ((VarInsnNode)insn).var));
+                else if (op == IINC)
+                    after.add(set('I', ((IincInsnNode)insn).var));
+                if (i == superCall) {
+                    after.add(new VarInsnNode(ALOAD, 0));
+                    after.add(probe("born", "(Ljava/lang/Object;)V"));
+                    after.add(start);
+                }
+                if (after.size() > 0)
+                    mn.instructions.insert(insn, after);
+            }
+
+            // a frame popped by an exception; the handler covers the
+            // user's own handlers too, and so must come after them
+            mn.instructions.add(end);
+            mn.instructions.add(unwind);
+            mn.instructions.add(new FrameNode(F_NEW, 0, new Object[0], 1, new Object[] {"java/lang/Throwable"}));
+            mn.instructions.add(new InsnNode(DUP));
+            mn.instructions.add(push(info.id));
+            mn.instructions.add(probe("unwind", "(Ljava/lang/Throwable;I)V"));
+            mn.instructions.add(new InsnNode(ATHROW));
+            if (superCall >= 0 || !mn.name.equals("<init>"))
+                mn.tryCatchBlocks.add(new TryCatchBlockNode(start, end, unwind, null));
+        }
+
+        // loads the local in slot and calls Tracer.set with it
+        private InsnList set(char type, int slot) {
+            InsnList result = new InsnList();
+            int load = type == 'J' ? LLOAD : type == 'F' ? FLOAD : type == 'D' ? DLOAD
+                : type == 'L' || type == '[' || type == 'A' ? ALOAD : ILOAD;
+            result.add(new VarInsnNode(load, slot));
+            result.add(push(slot));
+            result.add(probe("set", "(" + probeType(type == 'A' ? 'L' : type) + "I)V"));
+            return result;
+        }
+
+        // the way JDI2JSON.FrameLayout sees the LocalVariableTable
+        private void readVariables(int argSlots) {
+            if (mn.localVariables == null || mn.localVariables.isEmpty())
+                return; // no names: args stays null
+            List<Tracer.Var> args = new ArrayList<>();
+            for (LocalVariableNode lv : mn.localVariables) {
+                if (lv.name.equals("this") || lv.name.startsWith("this$"))
+                    continue; // JDI leaves them out of variables()
+                Integer startPc = pcs.get(lv.start);
+                Tracer.Var v = new Tracer.Var(lv.name, lv.desc.charAt(0), lv.index,
+                                              ((startPc == null ? 0 : startPc) << 4) + lv.index);
+                if (lv.index < argSlots)
+                    args.add(v);
+                else if (!lv.name.endsWith("$")) {
+                    vars.add(v);
+                    scopes.add(new int[] {index.get(lv.start), index.get(lv.end)});
+                }
+            }
+            info.args = args.toArray(new Tracer.Var[args.size()]);
+            info.completedArgs = args.size() == info.argTypes.length;
+        }
+
+        /* The line of each instruction, as Location.lineNumber gives it:
+           from the last line entry at or before it, or else the first
+           one. And which instructions start a line, where the debugger
+           puts a breakpoint. */
+        private void readLines() {
+            lines = new int[code.length];
+            lineStart = new boolean[code.length];
+            int line = -1, firstPc = Integer.MAX_VALUE;
+            for (AbstractInsnNode insn : code)
+                if (insn instanceof LineNumberNode) {
+                    Integer pc = pcs.get(((LineNumberNode)insn).start);
+                    if (pc != null && pc < firstPc) {
+                        firstPc = pc;
+                        line = ((LineNumberNode)insn).line;
+                    }
+                }
+            boolean starts = false;
+            for (int i=0; i<code.length; i++) {
+                if (code[i] instanceof LineNumberNode) {
+                    line = ((LineNumberNode)code[i]).line;
+                    starts = true;
+                }
+                else if (code[i].getOpcode() >= 0) {
+                    lines[i] = line;
+                    lineStart[i] = starts;
+                    starts = false;
+                }
+            }
+        }
+
+        /* Where a single step in the middle of a line would show
+           something new, like Bytecodes.stops: after stores, where
+           jumps land, where variables go out of scope, and after
+           native library calls, which the debugger steps over.
+           And where handlers start. */
+        private void findStops() {
+            stop = new boolean[code.length];
+            handler = new boolean[code.length];
+            for (int i=0; i<code.length; i++) {
+                AbstractInsnNode insn = code[i];
+                int op = insn.getOpcode();
+                if (op >= ISTORE && op <= ASTORE || op >= IASTORE && op <= SASTORE
+                    || op == IINC || op == PUTFIELD || op == PUTSTATIC)
+                    mark(stop, nextInstruction(i));
+                else if (insn instanceof JumpInsnNode)
+                    mark(stop, firstInstruction(index.get(((JumpInsnNode)insn).label)));
+                else if (insn instanceof TableSwitchInsnNode) {
+                    mark(stop, firstInstruction(index.get(((TableSwitchInsnNode)insn).dflt)));
+                    for (LabelNode label : ((TableSwitchInsnNode)insn).labels)
+                        mark(stop, firstInstruction(index.get(label)));
+                }
+                else if (insn instanceof LookupSwitchInsnNode) {
+                    mark(stop, firstInstruction(index.get(((LookupSwitchInsnNode)insn).dflt)));
+                    for (LabelNode label : ((LookupSwitchInsnNode)insn).labels)
+                        mark(stop, firstInstruction(index.get(label)));
+                }
+                else if (insn instanceof MethodInsnNode) {
+                    MethodInsnNode call = (MethodInsnNode)insn;
+                    if (isNative(call.owner, call.name, call.desc)) {
+                        site(i).nativeCall = true;
+                        mark(stop, nextInstruction(i));
+                    }
+                }
+            }
+            for (int[] scope : scopes)
+                mark(stop, firstInstruction(scope[1]));
+            for (TryCatchBlockNode tcb : mn.tryCatchBlocks)
+                mark(handler, firstInstruction(index.get(tcb.handler)));
+        }
+
+        private static void mark(boolean[] where, int i) {
+            if (i >= 0)
+                where[i] = true;
+        }
+
+        // the index of the first instruction at or after i, or -1
+        private int firstInstruction(int i) {
+            while (i < code.length && code[i].getOpcode() < 0)
+                i++;
+            return i < code.length ? i : -1;
+        }
+
+        private int nextInstruction(int i) {
+            return firstInstruction(i + 1);
+        }
+
+        /* In a constructor, the invokespecial of super() or this():
+           the first one of an <init> on what ALOAD 0 loaded. Only
+           after it returns is the object being built what `this`
+           shows (see Tracer.born). -1 if it can't be found. */
+        private int findSuperCall() {
+            Frame<SourceValue>[] frames;
+            try {
+                frames = new Analyzer<>(new SourceInterpreter()).analyze(cn.name, mn);
+            }
+            catch (AnalyzerException e) {
+                return -1;
+            }
+            for (int i=0; i<code.length; i++) {
+                if (code[i].getOpcode() != INVOKESPECIAL || frames[i] == null
+                    || !((MethodInsnNode)code[i]).name.equals("<init>"))
+                    continue;
+                Frame<SourceValue> f = frames[i];
+                int receiver = f.getStackSize() - 1 - Type.getArgumentTypes(((MethodInsnNode)code[i]).desc).length;
+                Set<AbstractInsnNode> sources = f.getStack(receiver).insns;
+                if (sources.size() == 1) {
+                    AbstractInsnNode source = sources.iterator().next();
+                    if (source.getOpcode() == ALOAD && ((VarInsnNode)source).var == 0)
+                        return i;
+                }
+            }
+            return -1;
+        }
+
+        // the site of the instruction at code[i], made the first time
+        private Tracer.Site site(int i) {
+            Tracer.Site result = sites.get(i);
+            if (result == null) {
+                List<Tracer.Var> inScope = new ArrayList<>();
+                for (int k=0; k<vars.size(); k++)
+                    if (scopes.get(k)[0] < i && scopes.get(k)[1] > i)
+                        inScope.add(vars.get(k));
+                result = new Tracer.Site(info, lines[i], inScope.toArray(new Tracer.Var[inScope.size()]));
+                result.lineStart = lineStart[i];
+                sites.put(i, result);
+                Tracer.register(result);
+                if (code[i] instanceof MethodInsnNode) {
+                    int next = nextInstruction(i);
+                    if (next >= 0)
+                        result.next = site(next);
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package traceprinter.shoelace.instrument;
+
+import java.util.*;
+import traceprinter.shoelace.ByteClassLoader;
+
+/***
+ The loader for the instrument engine: a ByteClassLoader that gives
+ the user's classes probes (see Instrumenter) as they are defined.
+ It is its own class, so that the jdi engine has no overridden
+ loadClass to step into for every class the user's code loads.
+***/
+
+class InstrumentingClassLoader extends ByteClassLoader {
+
+    static InstrumentingClassLoader instance;
+
+    // the classes that get probes
+    private final Set<String> instrumented;
+
+    InstrumentingClassLoader(Set<String> instrumented) {
+        this.instrumented = instrumented;
+        instance = this;
+    }
+
+    @Override
+    public void define(String className, byte[] bytecode) {
+        if (instrumented.contains(className))
+            bytecode = Instrumenter.instrument(bytecode);
+        super.define(className, bytecode);
+    }
+
+    // the debugger would step into this method, and stop stepping
+    @Override
+    public Class<?> loadClass(String name) throws ClassNotFoundException {
+        Tracer.loading(name);
+        return super.loadClass(name);
+    }
+
+    // the class by that name, if this loader has loaded it yet
+    Class<?> loaded(String name) {
+        return findLoadedClass(name);
+    }
+}
@@ -0,0 +1,1258 @@
+package traceprinter.shoelace.instrument;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+import javax.json.*;
+import traceprinter.shoelace.VMCommandee;
+
+/***
+ The debuggee's half of the "instrument" engine (options.engine, see
+ README). Classes rewritten by Instrumenter call the probes here as
+ they run, and Tracer builds the execution points JDI2JSON would have
+ built from the debugger's events: it keeps its own stack of the
+ user's frames, and reads the heap by reflection. The ids of objects
+ are handed out in the order JDI would first have seen them, so
+ that the two engines give the same trace. Tracer.run then hands the
+ whole trace to the debugger in one string.
+
+ Which probes show a step follows JSONTracingThread: stepping is on
+ from anything that happens in user code until a step into library
+ code (a call that isn't native, a return to a library caller, the
+ class loader, or a class being initialized). A line start always
+ shows a step; the other step probes only do while stepping.
+***/
+
+public class Tracer {
+
+    // a method of a user class, as Instrumenter saw it
+    static final class MethodInfo {
+        final String className, name;
+        final boolean isStatic;
+        final boolean hidden;     // access$ methods, whose steps aren't shown
+        final char returnType;    // first character of the descriptor, 'V' for void
+        final char[] argTypes;
+        final int[] argSlots;
+        final int maxLocals;
+        Var[] args;               // those with names, null without a LocalVariableTable
+        boolean completedArgs;    // every argument has a name
+        boolean unreadableArgs;   // JDI gets JDWP error 35 for them, see JDI2JSON.FrameLayout
+        Site entry;
+        int id;
+        private Class<?> declaringClass;
+
+        MethodInfo(String className, String name, boolean isStatic, char returnType,
+                   char[] argTypes, int[] argSlots, int maxLocals) {
+            this.className = className;
+            this.name = name;
+            this.isStatic = isStatic;
+            this.hidden = name.contains("access$");
+            this.returnType = returnType;
+            this.argTypes = argTypes;
+            this.argSlots = argSlots;
+            this.maxLocals = maxLocals;
+        }
+
+        Class<?> declaringClass() {
+            if (declaringClass == null)
+                declaringClass = loadedClass(className);
+            return declaringClass;
+        }
+    }
+
+    // a local variable; key orders them like JDI2JSON.FrameLayout.order
+    static final class Var {
+        final String name;
+        final char type;
+        final int slot, key;
+
+        Var(String name, char type, int slot, int key) {
+            this.name = name;
+            this.type = type;
+            this.slot = slot;
+            this.key = key;
+        }
+    }
+
+    // an instruction a probe reports from
+    static final class Site {
+        final MethodInfo method;
+        final int line;
+        final Var[] vars;          // non-arguments in scope, in LocalVariableTable order
+        final List<String> order;  // their names, for ordered_varnames
+        boolean lineStart;         // the debugger has a breakpoint here
+        boolean nativeCall;        // invokes a native library method, so stepping goes on
+        boolean superCall;         // a constructor's call of super() or this()
+        Site next;                 // for an invoke, the instruction after it
+        int id;
+
+        Site(MethodInfo method, int line, Var[] vars) {
+            this.method = method;
+            this.line = line;
+            this.vars = vars;
+            Var[] sorted = vars.clone();
+            Arrays.sort(sorted, new Comparator<Var>() {
+                public int compare(Var a, Var b) {
+                    return Integer.compare(a.key, b.key);
+                }
+            });
+            List<String> names = new ArrayList<>();
+            for (Var v : sorted)
+                names.add(v.name);
+            order = names;
+        }
+    }
+
+    private static final List<MethodInfo> methods = new ArrayList<>();
+    private static final List<Site> sites = new ArrayList<>();
+
+    static void register(MethodInfo m) {
+        m.id = methods.size();
+        methods.add(m);
+    }
+
+    static void register(Site s) {
+        s.id = sites.size();
+        sites.add(s);
+    }
+
+    // a running user method
+    private static final class Frame {
+        final MethodInfo method;
+        final Object[] locals;
+        Object self;              // constructors only: an Unborn until super() returns
+        Site site;                // where it is
+        Site calling;             // an invoke that hasn't entered a user method (yet)
+        boolean direct;           // called by the user frame below, not by a library
+        boolean resuming;         // a class initializer it set off has just returned
+        StackTraceElement stub;   // else the library frame just above that one
+
+        Frame(MethodInfo method) {
+            this.method = method;
+            this.locals = new Object[method.maxLocals];
+        }
+
+        Object self() {
+            if (method.isStatic)
+                return null;
+            if (!method.name.equals("<init>"))
+                return locals[0];
+            if (self instanceof Unborn && ((Unborn)self).born != null)
+                return ((Unborn)self).born;
+            return self;
+        }
+    }
+
+    /* What `this` is in a constructor before its super() returns:
+       JDI shows the object being built, but Java can't touch it yet.
+       It shows as an instance with every field at its default, and
+       gets the same id the object has afterwards. */
+    private static final class Unborn {
+        final Class<?> type;
+        Object born;
+
+        Unborn(Class<?> type) {
+            this.type = type;
+        }
+    }
+
+    // thrown by every probe once the trace is over
+    private static final class Stop extends Error {
+        private static final long serialVersionUID = 1L;
+        Stop() {
+            super("end of trace", null, false, false);
+        }
+    }
+
+    private static final Stop STOP = new Stop();
+
+    private static final sun.misc.Unsafe unsafe;
+    static {
+        try {
+            Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = (sun.misc.Unsafe) f.get(null);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // settings, from the debugger
+    static Set<String> userClasses = Collections.emptySet();
+    private static List<String> builtinPackages, stdlib;
+    private static boolean showStringsAsValues;
+    private static int steps, maxSteps, maxStackSize;
+    private static long deadline;
+
+    // the state of the trace
+    private static List<Frame> frames = null;
+    private static boolean stepping, stopped;
+    private static String status;
+    private static JsonArrayBuilder trace;
+    private static JsonObject lastPoint;
+    private static long frameTicker;
+    private static Throwable reported;      // the last exception shown
+    private static Throwable escaped;       // what main threw, if anything
+    private static RuntimeException error;  // a bug in Tracer
+    private static int inTracer = 0;        // > 0 while reading the heap
+
+    // what JDI2JSON keeps about the same things
+    private static IdentityHashMap<Object, Long> ids;
+    private static long nextId;
+    private static TreeMap<Long, Object> heap;
+    private static List<Class<?>> initialized;   // user classes, in order
+    private static Set<MethodInfo> laidOut;
+    private static Map<Class<?>, TypeInfo> typeInfos;
+    private static Class<?> stdIn;
+
+    // the user's output
+    private static ByteArrayOutputStream stdout;
+    private static PrintStream realOut;
+    private static Field stdOutField;
+    private static Object realStdOut;
+    private static String stdoutContents;
+
+    /* Like VMCommandee.runBundle, but the user's classes get probes,
+       and instead of an error message the result is the JSON object
+       from finish. settings is a JSON object from the debugger, see
+       JSONTracingThread.instrumentSettings. Only this engine loads
+       Tracer, so that the jdi engine sees no more classes than it
+       did before there was one. */
+    public static String run(byte[] bundle, String className, String[] args,
+                             String stdin, String settings) {
+        try {
+            start(settings, args);
+        }
+        catch (IOException | RuntimeException e) {
+            return finish("Internal error: bad settings " + e);
+        }
+        if (!VMCommandee.define(new InstrumentingClassLoader(userClasses), bundle))
+            return finish("Internal error: bad class bundle");
+        String error;
+        try {
+            error = new VMCommandee().runMain(className, args, stdin);
+        }
+        catch (RuntimeException e) {
+            // main threw it, and the trace has shown it
+            error = "Internal error handling error " + e;
+        }
+        return finish(error);
+    }
+
+    private static void start(String settings, String[] args) throws IOException {
+        JsonObject s = Json.createReader(new StringReader(settings)).readObject();
+        userClasses = new HashSet<>(strings(s.getJsonArray("user")));
+        builtinPackages = strings(s.getJsonArray("builtin"));
+        stdlib = strings(s.getJsonArray("stdlib"));
+        showStringsAsValues = s.getBoolean("showStringsAsValues");
+        steps = s.getInt("steps");
+        maxSteps = s.getInt("maxSteps");
+        maxStackSize = s.getInt("maxStackSize");
+        deadline = s.getJsonNumber("deadline").longValue();
+
+        methods.clear();
+        sites.clear();
+        frames = new ArrayList<>();
+        stepping = stopped = false;
+        status = "done";
+        trace = Json.createArrayBuilder();
+        lastPoint = null;
+        frameTicker = 0;
+        reported = escaped = null;
+        error = null;
+        ids = new IdentityHashMap<>();
+        nextId = 1;
+        initialized = new ArrayList<>();
+        laidOut = new HashSet<>();
+        typeInfos = new HashMap<>();
+        stdIn = null;
+
+        // the debugger makes main's arguments before anything else
+        for (String arg : args)
+            see(arg);
+        see(args);
+
+        // like System.out: flushed at each newline, or when 128 bytes are waiting
+        stdout = new ByteArrayOutputStream();
+        stdoutContents = "";
+        realOut = System.out;
+        PrintStream out = new PrintStream(new BufferedOutputStream(stdout, 128), true, "UTF-8");
+        System.setOut(out);
+        // StdOut made its writer from the old System.out, in an earlier run
+        Class<?> stdOut = loadedClass("StdOut");
+        stdOutField = null;
+        if (stdOut != null && !unsafe.shouldBeInitialized(stdOut)) {
+            try {
+                stdOutField = stdOut.getDeclaredField("out");
+                stdOutField.setAccessible(true);
+                realStdOut = stdOutField.get(null);
+                stdOutField.set(null, new PrintWriter(new OutputStreamWriter(out, "UTF-8"), true));
+            }
+            catch (ReflectiveOperationException e) {
+                stdOutField = null;
+            }
+        }
+    }
+
+    /* Once main is over; runError is what runMain returned. The
+       result is a JSON object, with either the "trace" and its
+       "status" (as in the ndjson trailer), or an "error". */
+    private static String finish(String runError) {
+        if (realOut != null) {
+            System.out.flush();
+            System.setOut(realOut);
+            realOut = null;
+        }
+        if (stdOutField != null) {
+            try {
+                stdOutField.set(null, realStdOut);
+            }
+            catch (ReflectiveOperationException e) {
+            }
+            stdOutField = null;
+        }
+        JsonObjectBuilder result = Json.createObjectBuilder();
+        if (error != null) {
+            StringWriter sw = new StringWriter();
+            error.printStackTrace(new PrintWriter(sw));
+            result.add("error", "Internal error: " + sw);
+        }
+        else if (trace == null || runError != null && !stopped && escaped == null)
+            result.add("error", runError);
+        else
+            result.add("status", status).add("trace", trace);
+        frames = null;
+        ids = null;
+        heap = null;
+        trace = null;
+        lastPoint = null;
+        return result.build().toString();
+    }
+
+    private static List<String> strings(JsonArray a) {
+        List<String> result = new ArrayList<>();
+        for (JsonString s : a.getValuesAs(JsonString.class))
+            result.add(s.getString());
+        return result;
+    }
+
+    /* The probes. Each one first ends the user's code if the trace
+       is over. */
+
+    public static void enter(int method) {
+        if (stopped)
+            throw STOP;
+        checkTime();
+        MethodInfo m = methods.get(method);
+        Frame f = new Frame(m);
+        // down the stack to the caller, if it is a user frame
+        StackTraceElement[] st = new Throwable().getStackTrace();
+        StackTraceElement stub = null;
+        boolean below = false;
+        for (int i=2; i<st.length && !below; i++) {
+            if (userClasses.contains(st[i].getClassName()))
+                below = true;
+            else
+                stub = st[i];
+        }
+        below &= !frames.isEmpty();
+        f.direct = below && stub == null;
+        f.stub = below ? stub : null;
+        if (f.direct) {
+            top().calling = null;
+            top().resuming = false;
+        }
+        if (m.name.equals("<init>")) {
+            if (f.direct && top().site != null && top().site.superCall)
+                f.self = top().self;
+            else
+                f.self = new Unborn(m.declaringClass());
+        }
+        f.site = m.entry;
+        frames.add(f);
+    }
+
+    public static void set(int value, int slot) {
+        store(value, slot);
+    }
+
+    public static void set(long value, int slot) {
+        store(value, slot);
+    }
+
+    public static void set(float value, int slot) {
+        store(value, slot);
+    }
+
+    public static void set(double value, int slot) {
+        store(value, slot);
+    }
+
+    public static void set(Object value, int slot) {
+        store(value, slot);
+    }
+
+    private static void store(Object value, int slot) {
+        if (stopped)
+            throw STOP;
+        Frame f = top();
+        resumed(f);
+        f.locals[slot] = value;
+    }
+
+    public static void call() {
+        if (stopped)
+            throw STOP;
+        point("call", null, 'V', null, 0);
+        stepping = true;
+    }
+
+    public static void step(int site) {
+        if (stopped)
+            throw STOP;
+        checkTime();
+        Frame f = top();
+        settle(f);
+        Site s = sites.get(site);
+        f.site = s;
+        f.resuming = false;
+        if (s.lineStart || stepping) {
+            stepping = true;
+            point("step_line", null, 'V', null, 0);
+        }
+    }
+
+    public static void at(int site) {
+        if (stopped)
+            throw STOP;
+        checkTime();
+        Frame f = top();
+        settle(f);
+        f.site = f.calling = sites.get(site);
+        resumed(f);
+    }
+
+    public static void born(Object self) {
+        if (stopped)
+            throw STOP;
+        Object unborn = top().self;
+        if (unborn instanceof Unborn) {
+            ((Unborn)unborn).born = self;
+            Long id = ids.get(unborn);
+            if (id != null)
+                ids.put(self, id);
+        }
+        // and the constructors below that are building it too
+        for (Frame f : frames)
+            if (f.self == unborn)
+                f.self = self;
+    }
+
+    public static void ret(int site) {
+        returned(null, site);
+    }
+
+    public static void ret(int value, int site) {
+        returned(value, site);
+    }
+
+    public static void ret(long value, int site) {
+        returned(value, site);
+    }
+
+    public static void ret(float value, int site) {
+        returned(value, site);
+    }
+
+    public static void ret(double value, int site) {
+        returned(value, site);
+    }
+
+    public static void ret(Object value, int site) {
+        returned(value, site);
+    }
+
+    /* The return, then (as the debugger would single-step to it) the
+       caller just after its invoke. But <clinit> wasn't invoked, and
+       its class is only initialized once it has returned: the step
+       is at the caller's next probe, see resumed. And back in a
+       <clinit>, the debugger only steps again at the next line. */
+    private static void returned(Object value, int site) {
+        if (stopped)
+            throw STOP;
+        Frame f = top();
+        settle(f);
+        f.site = sites.get(site);
+        resumed(f);
+        point("return", value, f.method.returnType, null, 0);
+        stepping = true;
+        frames.remove(frames.size() - 1);
+        if (!f.direct) {
+            stepping = false; // back in library code
+            return;
+        }
+        Frame caller = top();
+        if (f.method.name.equals("<clinit>")) {
+            caller.resuming = true;
+            return;
+        }
+        caller.calling = null;
+        if (caller.method.name.equals("<clinit>")) {
+            stepping = false;
+            return;
+        }
+        if (caller.site.next != null)
+            caller.site = caller.site.next;
+        point("step_line", null, 'V', null, 0);
+    }
+
+    public static void thrown(Throwable t, int site) {
+        if (stopped)
+            throw STOP;
+        Frame f = top();
+        settle(f);
+        f.site = sites.get(site);
+        resumed(f);
+        if (t != null) // else the athrow throws a NullPointerException
+            report(t, f.site.line);
+    }
+
+    public static void caught(Throwable t, int site) {
+        if (stopped)
+            throw STOP;
+        Site s = sites.get(site);
+        Frame f = unwindTo(s.method);
+        settle(f);
+        f.resuming = false;
+        if (t != reported && thrownIn(f, t))
+            report(t, t.getStackTrace()[0].getLineNumber());
+        f.site = s;
+        if (s.lineStart || stepping) {
+            stepping = true;
+            point("step_line", null, 'V', null, 0);
+        }
+    }
+
+    /* A frame popped by an exception. JDWP has no event for that,
+       but an exception thrown by the JVM (say, a division by zero)
+       shows up first, in the frame it happened in. An exception from
+       library code that main doesn't catch shows up once main is
+       gone, as the debugger sees it when VMCommandee.runMain
+       rethrows it. One from user code leaving a <clinit> is wrapped
+       in an ExceptionInInitializerError, so nothing catches it as
+       thrown, and the debugger ends the trace there. */
+    public static void unwind(Throwable t, int method) {
+        if (stopped)
+            return; // the athrow after the probe goes on unwinding
+        Frame f = unwindTo(methods.get(method));
+        settle(f);
+        if (t != reported && thrownIn(f, t))
+            report(t, t.getStackTrace()[0].getLineNumber());
+        frames.remove(frames.size() - 1);
+        if (f.method.name.equals("<clinit>") && !(t instanceof Error) && t == reported) {
+            stopped = true;
+            return;
+        }
+        if (frames.isEmpty()) {
+            escaped = t;
+            if (t != reported)
+                report(t, 0);
+        }
+    }
+
+    // a user class starts its static initializer; JDI would see it prepared
+    public static void initializing(Class<?> c) {
+        if (stopped)
+            throw STOP;
+        initialized.add(c);
+        stepping = false;
+    }
+
+    // called by InstrumentingClassLoader.loadClass: the debugger would step into it
+    static void loading(String name) {
+        if (frames != null && !frames.isEmpty() && inTracer == 0
+            && !name.startsWith("traceprinter.shoelace."))
+            stepping = false;
+    }
+
+    private static Frame top() {
+        return frames.get(frames.size() - 1);
+    }
+
+    /* The first probe in f after a class initializer it set off has
+       returned. The debugger steps to the instruction after the one
+       that needed the class (unless that calls a user method, whose
+       entry comes first); this is the nearest place that shows it. */
+    private static void resumed(Frame f) {
+        if (f.resuming) {
+            f.resuming = false;
+            point("step_line", null, 'V', null, 0);
+        }
+    }
+
+    // the invoke that was running has returned: was it in library code?
+    private static void settle(Frame f) {
+        if (f.calling != null && !f.calling.nativeCall)
+            stepping = false;
+        f.calling = null;
+    }
+
+    // frames an exception popped before they reached the catch-all handler
+    private static Frame unwindTo(MethodInfo m) {
+        while (frames.size() > 1 && top().method != m)
+            frames.remove(frames.size() - 1);
+        return top();
+    }
+
+    private static boolean thrownIn(Frame f, Throwable t) {
+        StackTraceElement[] st = t.getStackTrace();
+        return st.length > 0 && st[0].getClassName().equals(f.method.className)
+            && st[0].getMethodName().equals(f.method.name);
+    }
+
+    private static void report(Throwable t, int line) {
+        reported = t;
+        point("exception", null, 'V', t, line);
+        stepping = true;
+    }
+
+    private static void checkTime() {
+        if (System.currentTimeMillis() > deadline) {
+            trace.add(limitReached("<exceeded max visualizer time limit>"));
+            status = "timeout";
+            stopped = true;
+            throw STOP;
+        }
+    }
+
+    private static JsonObject limitReached(String message) {
+        return Json.createObjectBuilder()
+            .add("exception_msg", message)
+            .add("event", "instruction_limit_reached")
+            .build();
+    }
+
+    /* Building execution points, like JDI2JSON.convertExecutionPoint. */
+
+    // result is the return value for "return", exception for "exception"
+    private static void point(String event, Object result, char resultType, Throwable exception, int line) {
+        if (!frames.isEmpty() && top().method.hidden)
+            return;
+        JsonObject ep;
+        inTracer++;
+        try {
+            ep = convert(event, result, resultType, exception, line);
+        }
+        catch (RuntimeException e) {
+            error = e;
+            stopped = true;
+            throw STOP;
+        }
+        finally {
+            inTracer--;
+        }
+        if (!reallyChanged(lastPoint, ep))
+            return;
+        lastPoint = ep;
+        trace.add(ep);
+        steps++;
+        boolean quit = false;
+        if (ep.getJsonArray("stack_to_render").size() >= maxStackSize) {
+            trace.add(limitReached("<exceeded max visualizer stack size>"));
+            quit = true;
+        }
+        if (steps == maxSteps) {
+            trace.add(limitReached("<exceeded max visualizer step limit>"));
+            quit = true;
+        }
+        if (quit) {
+            status = "limit";
+            stopped = true;
+            throw STOP;
+        }
+    }
+
+    private static JsonObject convert(String event, Object result, char resultType, Throwable exception, int line) {
+        heap = new TreeMap<>();
+        JsonObjectBuilder ep = Json.createObjectBuilder();
+        ep.add("stdout", stdout());
+        ep.add("event", event);
+        JsonValue returnValue = null;
+        Frame top = frames.isEmpty() ? null : top();
+        if (exception == null)
+            ep.add("line", top.site.line);
+        if (event.equals("return"))
+            returnValue = resultType == 'V' ? VOID : value(result, resultType);
+        if (exception != null)
+            ep.add("exception_msg", exceptionMessage(exception));
+
+        JsonArrayBuilder stack = Json.createArrayBuilder();
+        for (int i=frames.size()-1; i>=0; i--) {
+            Frame f = frames.get(i);
+            frameTicker++;
+            stack.add(frame(f, f == top, returnValue, exception != null && f == top ? line : f.site.line));
+            returnValue = null;
+            if (f.stub != null) {
+                frameTicker++;
+                stack.add(stub(f.stub));
+            }
+        }
+        ep.add("stack_to_render", stack);
+
+        JsonObjectBuilder globals = Json.createObjectBuilder();
+        JsonArrayBuilder orderedGlobals = Json.createArrayBuilder();
+        for (Class<?> c : initialized)
+            if (!unsafe.shouldBeInitialized(c)) {
+                List<Field> statics = typeInfo(c).staticFields;
+                Object[] values = new Object[statics.size()];
+                for (int i=0; i<values.length; i++)
+                    values[i] = see(readStatic(statics.get(i)), typeOf(statics.get(i).getType()));
+                for (int i=0; i<values.length; i++) {
+                    String name = c.getName() + "." + statics.get(i).getName();
+                    globals.add(name, value(values[i], typeOf(statics.get(i).getType())));
+                    orderedGlobals.add(name);
+                }
+            }
+        if (stdIn == null)
+            stdIn = loadedClass("StdIn");
+        if (stdIn != null && !unsafe.shouldBeInitialized(stdIn)) {
+            try {
+                ep.add("stdinPosition", (Integer)readStatic(stdIn.getDeclaredField("position")));
+            }
+            catch (NoSuchFieldException e) {
+            }
+        }
+        ep.add("globals", globals);
+        ep.add("ordered_globals", orderedGlobals);
+        ep.add("func_name", top == null ? "runMain" : top.method.name);
+
+        JsonObjectBuilder heapJson = Json.createObjectBuilder();
+        Set<Long> done = new HashSet<>();
+        while (!heap.isEmpty()) {
+            Map.Entry<Long, Object> first = heap.pollFirstEntry();
+            if (done.add(first.getKey()))
+                heapJson.add("" + first.getKey(), full(first.getValue()));
+        }
+        ep.add("heap", heapJson);
+        return ep.build();
+    }
+
+    private static String stdout() {
+        if (stdout.size() != stdoutContents.length()) {
+            try {
+                stdoutContents = stdout.toString("UTF-8");
+            }
+            catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return stdoutContents;
+    }
+
+    // like JDI2JSON.reallyChanged, without the fingerprints
+    private static boolean reallyChanged(JsonObject old_ep, JsonObject new_ep) {
+        if (old_ep == null || old_ep.size() != new_ep.size())
+            return true;
+        for (Map.Entry<String, JsonValue> me : new_ep.entrySet())
+            if (!me.getKey().equals("stack_to_render") && !me.getValue().equals(old_ep.get(me.getKey())))
+                return true;
+        JsonArray old_frames = old_ep.getJsonArray("stack_to_render");
+        JsonArray new_frames = new_ep.getJsonArray("stack_to_render");
+        if (old_frames.size() != new_frames.size())
+            return true;
+        for (int i=0; i<new_frames.size(); i++) {
+            JsonObject old_frame = old_frames.getJsonObject(i);
+            for (Map.Entry<String, JsonValue> me : new_frames.getJsonObject(i).entrySet())
+                if (!me.getKey().equals("unique_hash") && !me.getKey().equals("frame_id")
+                    && !me.getValue().equals(old_frame.get(me.getKey())))
+                    return true;
+        }
+        return false;
+    }
+
+    // like JDI2JSON.convertFrame, which reads the same values in the same order
+    private static JsonObject frame(Frame f, boolean highlight, JsonValue returnValue, int line) {
+        JsonObjectBuilder locals = Json.createObjectBuilder();
+        JsonArrayBuilder ordered = Json.createArrayBuilder();
+        MethodInfo m = f.method;
+        Object self = f.self();
+        if (self != null) {
+            locals.add("this", value(see(self, 'L'), 'L'));
+            ordered.add("this");
+        }
+        if (laidOut.add(m) && !m.unreadableArgs) // FrameLayout's getArgumentValues
+            for (int i=0; i<m.argTypes.length; i++)
+                see(f.locals[m.argSlots[i]], m.argTypes[i]);
+        if (m.args != null)
+            for (Var v : m.args)
+                see(f.locals[v.slot], v.type);
+        for (Var v : f.site.vars)
+            see(f.locals[v.slot], v.type);
+
+        if (m.args != null)
+            for (Var v : m.args) {
+                Object arg = f.locals[v.slot];
+                if (v.name.equals("args") && arg != null && arg.getClass().isArray()
+                    && Array.getLength(arg) == 0)
+                    continue;
+                locals.add(v.name, value(arg, v.type));
+                ordered.add(v.name);
+            }
+        if (m.unreadableArgs) {
+            locals.add("&hellip;?", Json.createArrayBuilder().add("NUMBER-LITERAL").add("&hellip;?"));
+            ordered.add("&hellip;?");
+        }
+        else if (!m.completedArgs)
+            for (int i=0; i<m.argTypes.length; i++) {
+                locals.add("param#" + i, value(f.locals[m.argSlots[i]], m.argTypes[i]));
+                ordered.add("param#" + i);
+            }
+        for (Var v : f.site.vars)
+            locals.add(v.name, value(f.locals[v.slot], v.type));
+        for (String name : f.site.order)
+            ordered.add(name);
+        if (returnValue != null) {
+            locals.add("__return__", returnValue);
+            ordered.add("__return__");
+        }
+        return Json.createObjectBuilder()
+            .add("func_name", m.name + ":" + line)
+            .add("encoded_locals", locals)
+            .add("ordered_varnames", ordered)
+            .add("parent_frame_id_list", Json.createArrayBuilder())
+            .add("is_highlighted", highlight)
+            .add("is_zombie", false)
+            .add("is_parent", false)
+            .add("unique_hash", "" + frameTicker)
+            .add("frame_id", frameTicker)
+            .build();
+    }
+
+    private static JsonObject stub(StackTraceElement e) {
+        return Json.createObjectBuilder()
+            .add("func_name", "\u22EE\n" + e.getClassName() + "." + e.getMethodName())
+            .add("encoded_locals", Json.createObjectBuilder())
+            .add("ordered_varnames", Json.createArrayBuilder())
+            .add("parent_frame_id_list", Json.createArrayBuilder())
+            .add("is_highlighted", false)
+            .add("is_zombie", false)
+            .add("is_parent", false)
+            .add("unique_hash", "" + frameTicker)
+            .add("frame_id", frameTicker)
+            .build();
+    }
+
+    // like JDI2JSON.exceptionMessage: the longest detailMessage
+    private static String exceptionMessage(Throwable t) {
+        see(t);
+        String detail = "";
+        for (Class<?> c = t.getClass(); c != null; c = c.getSuperclass())
+            for (Field f : c.getDeclaredFields())
+                if (f.getName().equals("detailMessage") && f.getType() == String.class) {
+                    f.setAccessible(true);
+                    String message = (String)see(read(f, t), 'L');
+                    if (message != null && message.length() > detail.length())
+                        detail = message;
+                }
+        return detail.equals("") ? t.getClass().getName() : t.getClass().getName() + ": " + detail;
+    }
+
+    /* Values. Objects get ids as JDI would first see them: when it
+       reads a local, a field or an element holding them. */
+
+    private static final JsonArray VOID = Json.createArrayBuilder().add("VOID").build();
+
+    // type is the first character of a descriptor; returns v
+    private static Object see(Object v, char type) {
+        if ((type == 'L' || type == '[') && v != null)
+            see(v);
+        return v;
+    }
+
+    private static long see(Object o) {
+        Long id = ids.get(o);
+        if (id == null) {
+            id = nextId++;
+            ids.put(o, id);
+        }
+        return id;
+    }
+
+    // as JDI2JSON.convertValue; locals of int types are Integers
+    private static JsonValue value(Object v, char type) {
+        switch (type) {
+        case 'Z':
+            return (v instanceof Boolean ? (Boolean)v : v != null && (Integer)v != 0)
+                ? JsonValue.TRUE : JsonValue.FALSE;
+        case 'C':
+            char c = v instanceof Character ? (Character)v : (char)(v == null ? 0 : (int)(Integer)v);
+            return Json.createArrayBuilder().add("CHAR-LITERAL").add("" + c).build();
+        case 'B': case 'S': case 'I':
+            return number(v == null ? 0 : ((Number)v).intValue());
+        case 'J':
+            return literal("" + (v == null ? 0L : ((Number)v).longValue()));
+        case 'F':
+            return literal("" + (v == null ? 0f : ((Number)v).floatValue()));
+        case 'D':
+            return literal("" + (v == null ? 0d : ((Number)v).doubleValue()));
+        }
+        if (v == null)
+            return JsonValue.NULL;
+        if (showStringsAsValues && v instanceof String)
+            return string((String)v);
+        long id = see(v);
+        heap.put(id, v);
+        TypeInfo info = v.getClass().isArray() || v instanceof Unborn ? null : typeInfo(v.getClass());
+        if (showStringsAsValues && info != null && info.wrapper)
+            return primitive(v);
+        return Json.createArrayBuilder().add("REF").add(id).build();
+    }
+
+    private static JsonValue primitive(Object wrapper) {
+        return value(wrapper, typeOf(unboxed(wrapper.getClass())));
+    }
+
+    private static JsonValue literal(String s) {
+        return Json.createArrayBuilder().add("NUMBER-LITERAL").add(s).build();
+    }
+
+    private static JsonValue number(int i) {
+        return Json.createArrayBuilder().add(i).build().get(0);
+    }
+
+    private static JsonValue string(String s) {
+        return Json.createArrayBuilder().add(s).build().get(0);
+    }
+
+    // like JDI2JSON.convertObject(obj, true)
+    private static JsonValue full(Object o) {
+        if (o.getClass().isArray())
+            return list(o);
+        if (o instanceof String)
+            return Json.createArrayBuilder().add("HEAP_PRIMITIVE").add("String").add((String)o).build();
+        boolean unborn = o instanceof Unborn;
+        TypeInfo info = typeInfo(unborn ? ((Unborn)o).type : o.getClass());
+        if (info.wrapper && showStringsAsValues)
+            return primitive(o);
+        JsonArrayBuilder result = Json.createArrayBuilder();
+        if (info.kind.equals("QUEUE") || info.kind.equals("STACK")) {
+            result.add(info.kind);
+            int n = (Integer)read(info.field("N"), o);
+            if (n > 0) {
+                Object node = see(read(info.field("first"), o), 'L');
+                TypeInfo nodeInfo = typeInfo(node.getClass());
+                for (int i=0; i<n; i++) {
+                    result.add(value(see(read(nodeInfo.field("item"), node), 'L'), 'L'));
+                    node = see(read(nodeInfo.field("next"), node), 'L');
+                }
+            }
+            return result.build();
+        }
+        if (info.kind.equals("DICT")) {
+            result.add("DICT");
+            symbolTree(see(read(info.field("first"), o), 'L'), result);
+            return result.build();
+        }
+        result.add("INSTANCE");
+        result.add(info.displayName);
+        if (info.wrapper)
+            result.add(Json.createArrayBuilder().add("___NO_LABEL!___").add(primitive(o)));
+        else if (info.showGuts) {
+            // in the order of the HashMap ObjectReference.getValues returns
+            List<Field> statics = new ArrayList<>(), instance = new ArrayList<>();
+            for (Field f : info.fields)
+                (Modifier.isStatic(f.getModifiers()) ? statics : instance).add(f);
+            Map<FieldKey, Object> values = new HashMap<>(statics.isEmpty() ? info.fields.size() : statics.size());
+            for (Field f : statics)
+                values.put(new FieldKey(f, System.identityHashCode(f)), see(readStatic(f), typeOf(f.getType())));
+            for (Field f : instance)
+                values.put(new FieldKey(f, (int)(unsafe.objectFieldOffset(f) * 4 + 2)),
+                           see(unborn ? null : read(f, o), typeOf(f.getType())));
+            for (Map.Entry<FieldKey, Object> me : values.entrySet()) {
+                Field f = me.getKey().field;
+                if (!Modifier.isStatic(f.getModifiers()) && !f.isSynthetic())
+                    result.add(Json.createArrayBuilder().add(f.getName())
+                               .add(value(me.getValue(), typeOf(f.getType()))));
+            }
+        }
+        else if (info.kind.equals("STOPWATCH")) {
+            Object start = see(read(info.field("startString"), o), 'L');
+            result.add(Json.createArrayBuilder().add("started at")
+                       .add(Json.createArrayBuilder().add("NUMBER-LITERAL").add(value(start, 'L'))));
+        }
+        return result.build();
+    }
+
+    // a Field keyed as JDI's FieldImpl is, by its field id
+    private static final class FieldKey {
+        final Field field;
+        final int hash;
+
+        FieldKey(Field field, int hash) {
+            this.field = field;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FieldKey && ((FieldKey)o).field.equals(field);
+        }
+    }
+
+    // ST: the keys and values in order; see JDI2JSON's stHandler
+    private static void symbolTree(Object n, JsonArrayBuilder result) {
+        if (n == null)
+            return;
+        TypeInfo info = typeInfo(n.getClass());
+        symbolTree(see(read(info.field("left"), n), 'L'), result);
+        if (see(read(info.field("value"), n), 'L') != null) {
+            JsonValue key = value(see(read(info.field("key"), n), 'L'), 'L');
+            result.add(Json.createArrayBuilder().add(key).add(value(read(info.field("value"), n), 'L')));
+        }
+        symbolTree(see(read(info.field("right"), n), 'L'), result);
+    }
+
+    // like JDI2JSON.convertArray without a window: runs of 4 or more are elided
+    private static JsonValue list(Object array) {
+        int L = Array.getLength(array);
+        char type = typeOf(array.getClass().getComponentType());
+        Object[] values = new Object[L];
+        for (int i=0; i<L; i++)
+            values[i] = see(Array.get(array, i), type);
+        JsonArrayBuilder result = Json.createArrayBuilder();
+        result.add("LIST");
+        for (int i=0; i<L; i++) {
+            int j=i+1;
+            while (j<L && same(values[j], values[i], type))
+                j++;
+            if (j-i >= 4) {
+                JsonValue v = value(values[i], type);
+                JsonArrayBuilder elide = Json.createArrayBuilder().add("ELIDE").add(j-i-2);
+                if (!(type == 'I' && (Integer)values[i] == 0))
+                    elide.add(v);
+                result.add(v);
+                result.add(elide);
+                result.add(v);
+                i = j-1;
+            }
+            else result.add(value(values[i], type));
+        }
+        return result.build();
+    }
+
+    // equal as JDI Values are
+    private static boolean same(Object a, Object b, char type) {
+        if (type == 'F')
+            return (Float)a == (float)(Float)b;
+        if (type == 'D')
+            return (Double)a == (double)(Double)b;
+        if (type == 'L' || type == '[')
+            return a == b;
+        return a.equals(b);
+    }
+
+    /* Reflection. */
+
+    private static final String[] wrapperTypes =
+        "Byte Short Integer Long Float Double Character Boolean".split(" ");
+
+    // what JDI2JSON.TypeInfo knows about a class
+    private static final class TypeInfo {
+        final String name;
+        final boolean wrapper;
+        final String kind;
+        final String displayName;
+        final boolean showGuts;
+        final List<Field> fields;         // visibleFields if showGuts
+        final List<Field> staticFields;   // the static ones of visibleFields
+        private final Map<String, Field> byName = new HashMap<>();
+        private final Class<?> type;
+
+        TypeInfo(Class<?> c) {
+            type = c;
+            name = c.getName();
+            wrapper = name.startsWith("java.lang.") && Arrays.asList(wrapperTypes).contains(name.substring(10));
+            if (name.equals("Queue")) kind = "QUEUE";
+            else if (name.equals("Stack")) kind = "STACK";
+            else if (name.equals("ST")) kind = "DICT";
+            else if (name.equals("Stopwatch")) kind = "STOPWATCH";
+            else kind = "INSTANCE";
+            displayName = wrapper ? name.substring(10) : displayName(name);
+            showGuts = name.matches("(^|\\.)Point") || !inBuiltinPackage(name);
+            List<Field> visible = visibleFields(c);
+            fields = showGuts ? visible : null;
+            staticFields = new ArrayList<>();
+            for (Field f : visible)
+                if (Modifier.isStatic(f.getModifiers()))
+                    staticFields.add(f);
+        }
+
+        // like ReferenceType.fieldByName
+        Field field(String fieldName) {
+            if (!byName.containsKey(fieldName)) {
+                Field result = null;
+                for (Field f : visibleFields(type))
+                    if (f.getName().equals(fieldName))
+                        result = f;
+                byName.put(fieldName, result);
+            }
+            return byName.get(fieldName);
+        }
+    }
+
+    private static TypeInfo typeInfo(Class<?> c) {
+        TypeInfo result = typeInfos.get(c);
+        if (result == null) {
+            result = new TypeInfo(c);
+            typeInfos.put(c, result);
+        }
+        return result;
+    }
+
+    private static final Map<Class<?>, List<Field>> visibleFields = new WeakHashMap<>();
+
+    /* As ReferenceType.visibleFields lists them: the class's own
+       fields, then those it inherits (from its superclass, then its
+       interfaces) and doesn't hide. */
+    private static List<Field> visibleFields(Class<?> c) {
+        List<Field> result = visibleFields.get(c);
+        if (result != null)
+            return result;
+        List<Field> visibleList = new ArrayList<>();
+        Map<String, Field> visibleTable = new HashMap<>();
+        Set<String> ambiguousNames = new HashSet<>();
+        List<Class<?>> inherited = new ArrayList<>();
+        if (c.getSuperclass() != null)
+            inherited.add(c.getSuperclass());
+        inherited.addAll(Arrays.asList(c.getInterfaces()));
+        for (Class<?> type : inherited)
+            for (Field field : visibleFields(type)) {
+                String name = field.getName();
+                if (ambiguousNames.contains(name))
+                    continue;
+                Field duplicate = visibleTable.get(name);
+                if (duplicate == null) {
+                    visibleList.add(field);
+                    visibleTable.put(name, field);
+                }
+                else if (!field.equals(duplicate)) {
+                    ambiguousNames.add(name);
+                    visibleTable.remove(name);
+                    visibleList.remove(duplicate);
+                }
+            }
+        result = new ArrayList<>(Arrays.asList(c.getDeclaredFields()));
+        for (Field field : result) {
+            Field hidden = visibleTable.get(field.getName());
+            if (hidden != null)
+                visibleList.remove(hidden);
+        }
+        result.addAll(visibleList);
+        for (Field field : result)
+            field.setAccessible(true);
+        visibleFields.put(c, result);
+        return result;
+    }
+
+    private static Object read(Field f, Object o) {
+        if (f == null || o == null)
+            return null;
+        try {
+            return f.get(o);
+        }
+        catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // without initializing the class, as JDI reads statics
+    private static Object readStatic(Field f) {
+        Object base = unsafe.staticFieldBase(f);
+        long offset = unsafe.staticFieldOffset(f);
+        switch (typeOf(f.getType())) {
+        case 'Z': return unsafe.getBoolean(base, offset);
+        case 'B': return unsafe.getByte(base, offset);
+        case 'C': return unsafe.getChar(base, offset);
+        case 'S': return unsafe.getShort(base, offset);
+        case 'I': return unsafe.getInt(base, offset);
+        case 'J': return unsafe.getLong(base, offset);
+        case 'F': return unsafe.getFloat(base, offset);
+        case 'D': return unsafe.getDouble(base, offset);
+        default: return unsafe.getObject(base, offset);
+        }
+    }
+
+    // the first character of the type's descriptor
+    private static char typeOf(Class<?> c) {
+        if (!c.isPrimitive())
+            return c.isArray() ? '[' : 'L';
+        if (c == boolean.class) return 'Z';
+        if (c == byte.class) return 'B';
+        if (c == char.class) return 'C';
+        if (c == short.class) return 'S';
+        if (c == int.class) return 'I';
+        if (c == long.class) return 'J';
+        if (c == float.class) return 'F';
+        if (c == double.class) return 'D';
+        return 'V';
+    }
+
+    private static Class<?> unboxed(Class<?> wrapper) {
+        try {
+            return (Class<?>)wrapper.getField("TYPE").get(null);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // JDI2JSON.displayName, for classes that aren't lambdas
+    private static String displayName(String fullName) {
+        if (fullName.indexOf("$") > 0) {
+            fullName = fullName.substring(1 + fullName.indexOf('$'));
+            if (fullName.matches("[0-9]+"))
+                fullName = "anonymous class " + fullName;
+            else if (fullName.substring(0, 1).matches("[0-9]+"))
+                fullName = "local class " + fullName.substring(1);
+        }
+        return fullName;
+    }
+
+    // JDI2JSON.in_builtin_package, with the lists the debugger sent
+    private static boolean inBuiltinPackage(String name) {
+        for (String badPrefix : builtinPackages)
+            if (name.startsWith(badPrefix + "."))
+                return true;
+        for (String badClass : stdlib)
+            if (name.equals(badClass) || name.startsWith(badClass + "$"))
+                return true;
+        return false;
+    }
+
+    private static Method findLoadedClass;
+
+    // the class by that name the user's code would get, if it is loaded yet
+    private static Class<?> loadedClass(String name) {
+        try {
+            if (findLoadedClass == null) {
+                findLoadedClass = ClassLoader.class.getDeclaredMethod("findLoadedClass", String.class);
+                findLoadedClass.setAccessible(true);
+            }
+            Class<?> result = null;
+            if (InstrumentingClassLoader.instance != null)
+                result = InstrumentingClassLoader.instance.loaded(name);
+            if (result == null)
+                result = (Class<?>)findLoadedClass.invoke(ClassLoader.getSystemClassLoader(), name);
+            return result;
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}